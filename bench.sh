@@ -0,0 +1,14 @@
+# builds and runs the JMH benchmarks in src/bench
+# the JMH jars must be in lib/ (see the README)
+# any arguments are passed to JMH, for example: ./bench.sh DataStructureBenchmark -p data=ngrambktree,flatbktree -p umiLength=12
+
+CP="lib/htsjdk-4.1.3.jar:lib/snappy-java-1.1.9.1.jar:lib/jmh-core-1.37.jar:lib/jmh-generator-annprocess-1.37.jar:lib/jopt-simple-5.0.4.jar:lib/commons-math3-3.6.1.jar"
+
+rm -rf bench_bin
+mkdir -p bench_bin
+
+# the annotation processor generates the benchmark harness
+javac --release 23 --add-modules jdk.incubator.vector -nowarn -cp "$CP" -d bench_bin src/umicollapse/*/*.java src/test/*.java src/bench/*.java || exit 1
+
+# the GC profiler reports the allocation rate alongside the throughput
+java --add-modules jdk.incubator.vector -cp "bench_bin:$CP" org.openjdk.jmh.Main -prof gc "$@"
@@ -0,0 +1,88 @@
+package bench;
+
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import test.TestUtils;
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+import umicollapse.util.ReadFreq;
+import umicollapse.util.ClusterTracker;
+import umicollapse.algo.*;
+import umicollapse.data.*;
+
+// deduplicates one alignment position with every data structure and algorithm
+// run with bench.sh, which also reports the allocation rate through the GC profiler
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class DataStructureBenchmark{
+    static final Map<String, Class<? extends DataStructure>> DATA = new HashMap<>();
+    static final Map<String, Class<? extends Algorithm>> ALGO = new HashMap<>();
+
+    static{
+        DATA.put("naive", Naive.class);
+        DATA.put("combo", Combo.class);
+        DATA.put("ngram", Ngram.class);
+        DATA.put("delete", SymmetricDelete.class);
+        DATA.put("trie", Trie.class);
+        DATA.put("bktree", BKTree.class);
+        DATA.put("sortbktree", SortBKTree.class);
+        DATA.put("ngrambktree", NgramBKTree.class);
+        DATA.put("sortngrambktree", SortNgramBKTree.class);
+        DATA.put("fenwickbktree", FenwickBKTree.class);
+        DATA.put("flatbktree", FlatBKTree.class);
+
+        ALGO.put("adj", Adjacency.class);
+        ALGO.put("dir", Directional.class);
+        ALGO.put("cc", ConnectedComponents.class);
+    }
+
+    @Param({"naive", "combo", "ngram", "delete", "trie", "bktree", "sortbktree", "ngrambktree", "sortngrambktree", "fenwickbktree", "flatbktree"})
+    public String data;
+
+    @Param({"adj", "dir", "cc"})
+    public String algo;
+
+    @Param({"10"})
+    public int umiLength;
+
+    @Param({"1"})
+    public int k;
+
+    // number of random UMIs, each with numDup UMIs within k edits
+    @Param({"1000"})
+    public int numUMIs;
+
+    @Param({"20"})
+    public int numDup;
+
+    @Param({"1.0"})
+    public float skew;
+
+    private float percentage = 0.5f;
+    private Map<BitSet, ReadFreq> reads;
+    private Class<? extends DataStructure> dataClass;
+    private Algorithm algorithm;
+
+    @Setup
+    public void setup() throws Exception{
+        reads = TestUtils.generateData(numUMIs, numDup, umiLength, k, percentage, skew, new Random(1234)); // fixed seed
+        dataClass = DATA.get(data);
+        algorithm = ALGO.get(algo).getDeclaredConstructor().newInstance();
+    }
+
+    @Benchmark
+    public List<Read> dedup() throws Exception{
+        DataStructure d = dataClass.getDeclaredConstructor().newInstance();
+        return algorithm.apply(reads, d, new ClusterTracker(false), umiLength, k, percentage);
+    }
+}
@@ -0,0 +1,147 @@
+package bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.fastq.FastqReader;
+import htsjdk.samtools.fastq.FastqRecord;
+import htsjdk.samtools.fastq.FastqWriter;
+import htsjdk.samtools.fastq.FastqWriterFactory;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import test.TestUtils;
+import umicollapse.util.ParallelSAMReader;
+import umicollapse.util.ParallelBAMWriter;
+
+// reads and writes a synthetic file that is generated in a temporary directory,
+// through the same readers and writers that the deduplication uses (see --io-threads)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class IOBenchmark{
+    private static final int IO_QUEUE_SIZE = 64;
+
+    @Param({"sam", "bam", "fastq"})
+    public String format;
+
+    // BGZF blocks are only compressed/decompressed in parallel for BAM files
+    @Param({"0", "4"})
+    public int ioThreads;
+
+    @Param({"100000"})
+    public int numReads;
+
+    @Param({"100"})
+    public int readLength;
+
+    private SAMFileHeader header;
+    private List<SAMRecord> records;
+    private List<FastqRecord> fastqRecords;
+    private File dir, in, out;
+    private ExecutorService ioPool;
+
+    @Setup
+    public void setup() throws Exception{
+        Random rand = new Random(1234); // fixed seed
+        dir = Files.createTempDirectory("umicollapse-bench").toFile();
+        in = new File(dir, "in." + format);
+        out = new File(dir, "out." + format);
+
+        if(format.equals("fastq")){
+            fastqRecords = TestUtils.generateFASTQRecords(numReads, readLength, rand);
+            FastqWriter writer = new FastqWriterFactory().newWriter(in);
+
+            for(FastqRecord record : fastqRecords)
+                writer.write(record);
+
+            writer.close();
+        }else{
+            header = TestUtils.generateHeader(4, numReads * readLength);
+            records = TestUtils.generateSAMRecords(header, numReads, numReads / 10, 10, readLength, rand);
+            SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, true, in);
+
+            for(SAMRecord record : records)
+                writer.addAlignment(record);
+
+            writer.close();
+        }
+
+        if(ioThreads > 0){
+            ioPool = Executors.newFixedThreadPool(ioThreads, r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown(){
+        if(ioPool != null)
+            ioPool.shutdown();
+
+        in.delete();
+        out.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void read(Blackhole bh) throws Exception{
+        if(format.equals("fastq")){
+            FastqReader reader = new FastqReader(in);
+
+            for(FastqRecord record : reader)
+                bh.consume(record);
+
+            reader.close();
+        }else{
+            ParallelSAMReader reader = new ParallelSAMReader(in, ioPool, IO_QUEUE_SIZE);
+
+            for(SAMRecord record : reader)
+                bh.consume(record);
+
+            reader.close();
+        }
+    }
+
+    // same writers as the deduplication, so the output is also sorted by htsjdk
+    @Benchmark
+    public void write(){
+        if(format.equals("fastq")){
+            FastqWriter writer = new FastqWriterFactory().newWriter(out);
+
+            for(FastqRecord record : fastqRecords)
+                writer.write(record);
+
+            writer.close();
+        }else{
+            SAMFileWriter writer;
+
+            if(ioPool != null && format.equals("bam"))
+                writer = new ParallelBAMWriter(header, false, out, ioPool, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL, IO_QUEUE_SIZE);
+            else
+                writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, out);
+
+            for(SAMRecord record : records)
+                writer.addAlignment(record);
+
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import test.TestUtils;
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+import umicollapse.util.ReadFreq;
+import umicollapse.util.ClusterTracker;
+import umicollapse.algo.*;
+import umicollapse.data.*;
+
+// same as DataStructureBenchmark, but for the parallel data structures and algorithms (-T)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ParallelDataStructureBenchmark{
+    static final Map<String, Class<? extends ParallelDataStructure>> DATA = new HashMap<>();
+    static final Map<String, Class<? extends ParallelAlgorithm>> ALGO = new HashMap<>();
+
+    static{
+        DATA.put("naive", ParallelNaive.class);
+        DATA.put("combo", ParallelCombo.class);
+        DATA.put("ngram", ParallelNgram.class);
+        DATA.put("delete", ParallelSymmetricDelete.class);
+        DATA.put("trie", ParallelTrie.class);
+        DATA.put("bktree", ParallelBKTree.class);
+        DATA.put("ngrambktree", ParallelNgramBKTree.class);
+        DATA.put("fenwickbktree", ParallelFenwickBKTree.class);
+        DATA.put("flatbktree", ParallelFlatBKTree.class);
+
+        ALGO.put("adj", ParallelAdjacency.class);
+        ALGO.put("dir", ParallelDirectional.class);
+        ALGO.put("cc", ParallelConnectedComponents.class);
+    }
+
+    @Param({"naive", "combo", "ngram", "delete", "trie", "bktree", "ngrambktree", "fenwickbktree", "flatbktree"})
+    public String data;
+
+    @Param({"adj", "dir", "cc"})
+    public String algo;
+
+    @Param({"10"})
+    public int umiLength;
+
+    @Param({"1"})
+    public int k;
+
+    // number of random UMIs, each with numDup UMIs within k edits
+    @Param({"1000"})
+    public int numUMIs;
+
+    @Param({"20"})
+    public int numDup;
+
+    @Param({"1.0"})
+    public float skew;
+
+    private float percentage = 0.5f;
+    private Map<BitSet, ReadFreq> reads;
+    private Class<? extends ParallelDataStructure> dataClass;
+    private ParallelAlgorithm algorithm;
+
+    @Setup
+    public void setup() throws Exception{
+        reads = TestUtils.generateData(numUMIs, numDup, umiLength, k, percentage, skew, new Random(1234)); // fixed seed
+        dataClass = DATA.get(data);
+        algorithm = ALGO.get(algo).getDeclaredConstructor().newInstance();
+    }
+
+    @Benchmark
+    public List<Read> dedup() throws Exception{
+        ParallelDataStructure d = dataClass.getDeclaredConstructor().newInstance();
+        return algorithm.apply(reads, d, new ClusterTracker(false), umiLength, k, percentage);
+    }
+}
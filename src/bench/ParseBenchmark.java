@@ -0,0 +1,127 @@
+package bench;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.fastq.FastqRecord;
+
+import test.TestUtils;
+import umicollapse.util.Read;
+import umicollapse.util.SAMRead;
+import umicollapse.util.FASTQRead;
+import umicollapse.util.Alignment;
+
+// the per-record work between reading and writing reads, on synthetic reads that are generated in memory
+// each benchmark processes all of the reads, with or without --quick-io
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ParseBenchmark{
+    @Param({"false", "true"})
+    public boolean quickIO;
+
+    @Param({"100000"})
+    public int numReads;
+
+    // number of distinct alignment positions
+    @Param({"10000"})
+    public int numPositions;
+
+    @Param({"10"})
+    public int umiLength;
+
+    @Param({"100"})
+    public int readLength;
+
+    private List<SAMRecord> records;
+    private List<Alignment> alignments;
+    private List<FastqRecord> fastqRecords;
+    private List<FASTQRead> fastqReads;
+
+    @Setup
+    public void setup(){
+        Read.setQuickIOMode(quickIO);
+        SAMRead.setDefaultUMISeparator("_");
+
+        Random rand = new Random(1234); // fixed seed
+        SAMFileHeader header = TestUtils.generateHeader(4, numPositions * readLength);
+        records = TestUtils.generateSAMRecords(header, numReads, numPositions, umiLength, readLength, rand);
+        fastqRecords = TestUtils.generateFASTQRecords(numReads, readLength, rand);
+
+        alignments = new ArrayList<>(numReads);
+        fastqReads = new ArrayList<>(numReads);
+
+        for(SAMRecord record : records)
+            alignments.add(Alignment.fromRecord(record, false));
+
+        for(FastqRecord record : fastqRecords)
+            fastqReads.add(new FASTQRead(record.getReadName(), record.getReadString(), record.getBaseQualityString()));
+    }
+
+    // UMIs are cached after they are extracted, so every invocation needs fresh reads
+    @State(Scope.Thread)
+    public static class SAMReads{
+        public List<SAMRead> reads;
+
+        @Setup(Level.Invocation)
+        public void setup(ParseBenchmark b){
+            reads = new ArrayList<>(b.records.size());
+
+            for(SAMRecord record : b.records)
+                reads.add(new SAMRead(record));
+        }
+    }
+
+    @Benchmark
+    public void constructSAMRead(Blackhole bh){
+        for(SAMRecord record : records)
+            bh.consume(new SAMRead(record));
+    }
+
+    @Benchmark
+    public void extractUMI(SAMReads s, Blackhole bh){
+        for(SAMRead read : s.reads)
+            bh.consume(read.getUMI(-1));
+    }
+
+    @Benchmark
+    public void constructAlignment(Blackhole bh){
+        for(SAMRecord record : records)
+            bh.consume(Alignment.fromRecord(record, false));
+    }
+
+    // group the reads by alignment position, like the deduplication does
+    @Benchmark
+    public Map<Alignment, Integer> hashAlignment(){
+        Map<Alignment, Integer> res = new HashMap<>(1 << 16);
+
+        for(Alignment alignment : alignments)
+            res.merge(alignment, 1, Integer::sum);
+
+        return res;
+    }
+
+    @Benchmark
+    public void constructFASTQRead(Blackhole bh){
+        for(FastqRecord record : fastqRecords)
+            bh.consume(new FASTQRead(record.getReadName(), record.getReadString(), record.getBaseQualityString()));
+    }
+
+    @Benchmark
+    public void toFASTQRecord(Blackhole bh){
+        for(FASTQRead read : fastqReads)
+            bh.consume(read.toFASTQRecord(readLength, 0));
+    }
+}
@@ -33,6 +33,7 @@ public class BenchmarkTime{
         d1.put("ngrambktree", NgramBKTree.class);
         d1.put("sortngrambktree", SortNgramBKTree.class);
         d1.put("fenwickbktree", FenwickBKTree.class);
+        d1.put("flatbktree", FlatBKTree.class);
 
         DataStructure data = d1.get(args[3]).getDeclaredConstructor().newInstance();
         Random rand = new Random(1234); // fixed seed
@@ -0,0 +1,140 @@
+package test;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import umicollapse.util.AsyncIterator;
+import umicollapse.util.OrderedWriter;
+
+// errors (like running out of memory) in the threads of the pipeline must reach the other side instead of hanging it,
+// and a consumer that quits early must not leave the producer blocked
+public class TestAsync{
+    private static final long TIMEOUT_MILLIS = 60000L;
+
+    public static void main(String[] args) throws Exception{
+        run("Error from the source of an async iterator", () -> {
+            AsyncIterator<Integer> it = new AsyncIterator<Integer>(new ThrowingSource(1000), 16, 2, "test-producer");
+
+            while(it.hasNext())
+                it.next();
+        });
+
+        run("Error from the sink of an ordered writer", () -> {
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            OrderedWriter<Integer> ordered = new OrderedWriter<Integer>(pool, 2, i -> {
+                if(i == 100)
+                    throw new OutOfMemoryError("test error");
+            }, "test-writer");
+
+            try{
+                for(int i = 0; i < 10000; i++){
+                    int j = i;
+                    ordered.submit(() -> j);
+                }
+
+                ordered.close();
+            }finally{
+                pool.shutdownNow();
+            }
+        });
+
+        run("Error from a task of an ordered writer", () -> {
+            ExecutorService pool = Executors.newFixedThreadPool(2);
+            OrderedWriter<Integer> ordered = new OrderedWriter<Integer>(pool, 2, i -> {}, "test-writer");
+
+            try{
+                for(int i = 0; i < 10000; i++){
+                    int j = i;
+                    ordered.submit(() -> {
+                        if(j == 100)
+                            throw new OutOfMemoryError("test error");
+
+                        return j;
+                    });
+                }
+
+                ordered.close();
+            }finally{
+                pool.shutdownNow();
+            }
+        });
+
+        // the source never ends, so the producer is always blocked on the full queue when the consumer quits
+        Thread consumer = new Thread(() -> {
+            AsyncIterator<Integer> it = new AsyncIterator<Integer>(new ThrowingSource(Integer.MAX_VALUE), 16, 2, "test-endless-producer");
+
+            for(int i = 0; i < 100; i++)
+                it.next();
+
+            it.close();
+        });
+        consumer.setDaemon(true);
+        consumer.start();
+        consumer.join(TIMEOUT_MILLIS);
+
+        boolean producerAlive = Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("test-endless-producer"));
+        System.out.println("Consumer that quits early: " + (consumer.isAlive() ? "hung (wrong!)" : (producerAlive ? "left the producer running (wrong!)" : "stopped the producer")));
+
+        // an ordered writer that is aborted before it is closed must stop its thread
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        OrderedWriter<Integer> ordered = new OrderedWriter<Integer>(pool, 2, i -> {}, "test-aborted-writer");
+        ordered.add(1);
+        ordered.abort();
+        pool.shutdownNow();
+
+        boolean writerAlive = Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("test-aborted-writer"));
+        System.out.println("Aborted ordered writer: " + (writerAlive ? "left the writer running (wrong!)" : "stopped the writer"));
+    }
+
+    private static void run(String name, Runnable r) throws Exception{
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try{
+                r.run();
+            }catch(Throwable e){
+                error.set(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        t.join(TIMEOUT_MILLIS);
+
+        String res;
+
+        if(t.isAlive())
+            res = "hung (wrong!)";
+        else if(error.get() == null)
+            res = "finished without an error (wrong!)";
+        else if(!(error.get() instanceof OutOfMemoryError))
+            res = "failed with the wrong error (wrong!): " + error.get();
+        else
+            res = "failed with " + error.get();
+
+        System.out.println(name + ": " + res);
+    }
+
+    // counts up, and throws an error instead of returning the limit
+    private static class ThrowingSource implements Iterator<Integer>{
+        private int limit;
+        private int curr = 0;
+
+        public ThrowingSource(int limit){
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return true;
+        }
+
+        @Override
+        public Integer next(){
+            if(curr == limit)
+                throw new OutOfMemoryError("test error");
+
+            return curr++;
+        }
+    }
+}
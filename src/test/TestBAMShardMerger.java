@@ -0,0 +1,183 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import umicollapse.util.BAMShardMerger;
+
+// merging BAM shards must give the reads of all of the shards in order, after the header of the first shard, with
+// exactly one EOF block at the end, however the header and the reads are laid out in the BGZF blocks of each shard
+public class TestBAMShardMerger{
+    private static final SAMFileHeader HEADER = TestUtils.generateHeader(3, 100000);
+
+    public static void main(String[] args) throws Exception{
+        Random rand = new Random(1234);
+
+        test("header sharing a block with the reads", rand, Layout.SHARED);
+        test("header ending exactly on a block boundary", rand, Layout.FLUSHED);
+        test("header filling a whole block", rand, Layout.FULL_BLOCK);
+        test("header over several blocks", rand, Layout.LARGE);
+        test("no EOF block", rand, Layout.NO_EOF);
+        test("empty shard", rand, Layout.EMPTY);
+        test("several shards", rand, Layout.SHARED, Layout.FLUSHED, Layout.EMPTY, Layout.FULL_BLOCK, Layout.NO_EOF, Layout.LARGE, Layout.SHARED);
+        test("empty first and last shards", rand, Layout.EMPTY, Layout.SHARED, Layout.FULL_BLOCK, Layout.EMPTY);
+    }
+
+    private enum Layout{
+        SHARED, FLUSHED, FULL_BLOCK, LARGE, NO_EOF, EMPTY
+    }
+
+    private static void test(String desc, Random rand, Layout... layouts) throws Exception{
+        List<File> shards = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+
+        for(Layout layout : layouts){
+            File shard = File.createTempFile("umicollapse_test", ".bam");
+            shard.deleteOnExit();
+            List<SAMRecord> records = layout == Layout.EMPTY ? new ArrayList<>() : TestUtils.generateSAMRecords(HEADER, 2000, 200, 10, 50, rand);
+            writeShard(shard, layout, records);
+            shards.add(shard);
+
+            for(SAMRecord record : records)
+                expected.add(record.getSAMString());
+        }
+
+        File out = File.createTempFile("umicollapse_test", ".bam");
+        out.deleteOnExit();
+        BAMShardMerger.merge(shards, out);
+
+        List<String> actual = new ArrayList<>();
+        SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(out);
+        boolean sameHeader = reader.getFileHeader().getSequenceDictionary().isSameDictionary(HEADER.getSequenceDictionary());
+
+        for(SAMRecord record : reader)
+            actual.add(record.getSAMString());
+
+        reader.close();
+
+        int emptyBlocks = countEmptyBlocks(out);
+        boolean eofLast = endsWithEOF(out);
+
+        System.out.println("Merging " + layouts.length + " shard(s) with " + desc + ": " + actual.size() + " reads, " +
+            (expected.equals(actual) && sameHeader ? "same as the shards" : "different from the shards (wrong!)") + ", " +
+            emptyBlocks + " empty block(s)" + (emptyBlocks == 1 && eofLast ? "" : " (wrong!)"));
+    }
+
+    // the header is laid out in the blocks like the layout says, and the reads follow it
+    private static void writeShard(File shard, Layout layout, List<SAMRecord> records) throws Exception{
+        BlockCompressedOutputStream out = new BlockCompressedOutputStream(shard);
+        String text = "@HD\tVN:1.6\tSO:coordinate\n";
+
+        if(layout == Layout.FULL_BLOCK){
+            // pads the header to exactly the size of a block, so the stream writes the block by itself
+            int padding = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE - encodeHeader(text).length;
+            text += comment(padding);
+        }else if(layout == Layout.LARGE){
+            text += comment(3 * BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE / 2);
+        }
+
+        byte[] header = encodeHeader(text);
+
+        if(layout == Layout.FULL_BLOCK && header.length != BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE)
+            throw new IllegalStateException("The padded header is " + header.length + " bytes!");
+
+        out.write(header);
+
+        if(layout == Layout.FLUSHED)
+            out.flush();
+
+        BAMRecordCodec codec = new BAMRecordCodec(HEADER);
+        codec.setOutputStream(out);
+
+        for(SAMRecord record : records)
+            codec.encode(record);
+
+        out.close(layout != Layout.NO_EOF);
+    }
+
+    // a comment line of exactly n bytes
+    private static String comment(int n){
+        char[] res = new char[n - "@CO\t\n".length()];
+        Arrays.fill(res, 'x');
+        return "@CO\t" + new String(res) + "\n";
+    }
+
+    // magic, text, and references of the BAM header
+    private static byte[] encodeHeader(String text){
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        byte[] textBytes = text.getBytes(StandardCharsets.US_ASCII);
+        res.writeBytes(new byte[]{'B', 'A', 'M', 1});
+        res.writeBytes(intBytes(textBytes.length));
+        res.writeBytes(textBytes);
+        res.writeBytes(intBytes(HEADER.getSequenceDictionary().size()));
+
+        for(SAMSequenceRecord ref : HEADER.getSequenceDictionary().getSequences()){
+            byte[] name = ref.getSequenceName().getBytes(StandardCharsets.US_ASCII);
+            res.writeBytes(intBytes(name.length + 1));
+            res.writeBytes(name);
+            res.write(0);
+            res.writeBytes(intBytes(ref.getSequenceLength()));
+        }
+
+        return res.toByteArray();
+    }
+
+    private static byte[] intBytes(int n){
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(n).array();
+    }
+
+    // walks over the BGZF blocks by their sizes, and counts the ones without any uncompressed bytes
+    private static int countEmptyBlocks(File f) throws Exception{
+        int res = 0;
+
+        try(RandomAccessFile in = new RandomAccessFile(f, "r")){
+            long pos = 0L;
+            byte[] buf = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+
+            while(pos < in.length()){
+                in.seek(pos);
+                in.readFully(buf, 0, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+                int blockSize = (ByteBuffer.wrap(buf, 16, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF) + 1;
+                in.seek(pos + blockSize - 4);
+                in.readFully(buf, 0, 4);
+
+                if(ByteBuffer.wrap(buf, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() == 0)
+                    res++;
+
+                pos += blockSize;
+            }
+        }
+
+        return res;
+    }
+
+    private static boolean endsWithEOF(File f) throws Exception{
+        byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        byte[] res = new byte[eof.length];
+
+        try(RandomAccessFile in = new RandomAccessFile(f, "r")){
+            in.seek(in.length() - eof.length);
+            in.readFully(res);
+        }
+
+        return Arrays.equals(res, eof);
+    }
+}
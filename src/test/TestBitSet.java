@@ -9,6 +9,26 @@ public class TestBitSet{
         test("ATCG", "ATCG");
         test("ATCG", "AGCC");
         test("ANCG", "ANCC");
+        // characters that cross chunks
+        test("AAAAAAAAAAAAAAAAAAAAAAAAA", "AAAAAAAAAAAAAAAAAAAAAGAAA");
+        test("ATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGN", "ATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGA");
+        testString("ATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGN");
+        // substrings that start and end within chunks
+        testRange("ATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGN", 0, 4);
+        testRange("ATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGN", 19, 25);
+        testRange("ATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGATCGN", 40, 5);
+    }
+
+    private static void testRange(String a, int start, int length){
+        BitSet range = Utils.toBitSet(a).range(start * 3, length * 3);
+        String expected = a.substring(start, start + length);
+        boolean same = range.equals(Utils.toBitSet(expected)) && Utils.umiDist(range, Utils.toBitSet(expected)) == 0;
+        System.out.println("Substring of " + a + " at " + start + " is " + Utils.toString(range, length) + (same ? "" : " (wrong!)"));
+    }
+
+    private static void testString(String a){
+        String b = Utils.toString(Utils.toBitSet(a), a.length());
+        System.out.println("Encoded and decoded " + a + " as " + b + (a.equals(b) ? "" : " (wrong!)"));
     }
 
     private static void test(String a, String b){
@@ -21,7 +21,8 @@ public class TestDataStructures{
             new SortBKTree(),
             new FenwickBKTree(),
             new NgramBKTree(),
-            new SortNgramBKTree()
+            new SortNgramBKTree(),
+            new FlatBKTree()
         };
 
         String[] s1 = {"AAAA", "AAAT", "CCCC", "CCCG", "TTTT"};
@@ -0,0 +1,72 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.fastq.BasicFastqWriter;
+import htsjdk.samtools.fastq.FastqReader;
+import htsjdk.samtools.fastq.FastqRecord;
+
+import umicollapse.algo.Directional;
+import umicollapse.data.Naive;
+import umicollapse.main.DeduplicateFASTQ;
+import umicollapse.merge.AvgQualMerge;
+import umicollapse.util.Utils;
+
+// deduplicating FASTQ files in partitions must give the same reads as deduplicating them all at once
+public class TestFASTQPartitions{
+    public static void main(String[] args) throws Exception{
+        File in = File.createTempFile("umicollapse_test", ".fastq");
+        File out = File.createTempFile("umicollapse_test", ".fastq");
+        File partitionedOut = File.createTempFile("umicollapse_test", ".fastq");
+        in.deleteOnExit();
+        out.deleteOnExit();
+        partitionedOut.deleteOnExit();
+
+        Random rand = new Random(1234);
+        List<FastqRecord> records = TestUtils.generateFASTQRecords(20000, 20, rand);
+        BasicFastqWriter writer = new BasicFastqWriter(in);
+
+        // exact duplicates with different qualities, so there is something to deduplicate with -k 0
+        for(FastqRecord record : records){
+            writer.write(record);
+
+            if(rand.nextInt(3) == 0)
+                writer.write(new FastqRecord(record.getReadName() + "_dup", record.getReadString(), "", Utils.toPhred33String(TestUtils.randQual(record.getReadLength(), rand))));
+        }
+
+        writer.close();
+
+        new DeduplicateFASTQ().deduplicateAndMerge(in, out, new Directional(), Naive.class, new AvgQualMerge(), -1, 0, 0.5f, false, false);
+        new DeduplicateFASTQ().deduplicateAndMergeExactPartitioned(in, partitionedOut, new Directional(), Naive.class, new AvgQualMerge(), -1, 0, 0.5f, false, false, 4);
+
+        List<String> expected = readSorted(out);
+        List<String> actual = readSorted(partitionedOut);
+        System.out.println("Partitioned output with -k 0 has " + actual.size() + " reads, unpartitioned has " + expected.size() + ": " + (expected.equals(actual) ? "same" : "different (wrong!)"));
+
+        String res;
+
+        try{
+            new DeduplicateFASTQ().deduplicateAndMergeExactPartitioned(in, partitionedOut, new Directional(), Naive.class, new AvgQualMerge(), -1, 1, 0.5f, false, false, 4);
+            res = "accepted (wrong!)";
+        }catch(UnsupportedOperationException e){
+            res = "rejected";
+        }
+
+        System.out.println("Exact partitions with -k 1: " + res);
+    }
+
+    private static List<String> readSorted(File f){
+        List<String> res = new ArrayList<>();
+        FastqReader reader = new FastqReader(f);
+
+        for(FastqRecord record : reader)
+            res.add(record.toFastQString());
+
+        reader.close();
+        res.sort(null);
+        return res;
+    }
+}
@@ -0,0 +1,202 @@
+package test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import htsjdk.samtools.fastq.BasicFastqWriter;
+import htsjdk.samtools.fastq.FastqReader;
+import htsjdk.samtools.fastq.FastqRecord;
+
+import umicollapse.algo.Directional;
+import umicollapse.data.*;
+import umicollapse.main.DeduplicateFASTQ;
+import umicollapse.main.Main;
+import umicollapse.merge.AvgQualMerge;
+import umicollapse.util.BitSet;
+import umicollapse.util.Utils;
+
+// indexing prefix keys must find the same sequences as indexing the whole sequences, and indexing minimizers must
+// only find sequences that are really within k (but not always all of them), with a warning when it is used
+public class TestKeyedDataStructures{
+    private static final int SEQ_LENGTH = 30;
+    private static final int NUM_SEQS = 2000;
+
+    public static void main(String[] args) throws Exception{
+        Random rand = new Random(1234);
+        List<String> seqs = new ArrayList<>();
+
+        for(FastqRecord record : TestUtils.generateFASTQRecords(NUM_SEQS, SEQ_LENGTH, rand))
+            seqs.add(record.getReadString());
+
+        Class<?>[] indexes = {ParallelNaive.class, ParallelBKTree.class, ParallelNgram.class, ParallelSymmetricDelete.class};
+
+        for(int k = 1; k <= 2; k++){
+            for(int prefix : new int[]{5, 10, SEQ_LENGTH}){
+                for(Class<?> index : indexes)
+                    test(seqs, k, new PrefixKey(prefix), index, rand);
+            }
+
+            test(seqs, k, new MinimizerKey(8), ParallelNaive.class, rand);
+        }
+
+        testFASTQ(rand);
+        testMinimizerWarning(rand);
+    }
+
+    // exact keys: removes the sequences near each sequence like the directional algorithm, in step with the naive
+    // data structure, so both must give the same sequences every time
+    // approximate keys: the sequences near each sequence must be some of the ones the naive data structure finds
+    private static void test(List<String> seqs, int k, ReadKey key, Class<?> index, Random rand) throws Exception{
+        Map<BitSet, Integer> m = new HashMap<>();
+
+        for(String seq : seqs)
+            m.put(Utils.toBitSet(seq), rand.nextInt(100) + 1);
+
+        KeyedDataStructure keyed = new KeyedDataStructure((ParallelDataStructure)index.getDeclaredConstructor().newInstance(), key);
+        keyed.init(new HashMap<BitSet, Integer>(m), SEQ_LENGTH, k);
+        int same = 0, missed = 0, wrong = 0;
+
+        if(key.isExact()){
+            DataStructure baseline = new Naive();
+            baseline.init(new HashMap<BitSet, Integer>(m), SEQ_LENGTH, k);
+
+            for(Map.Entry<BitSet, Integer> e : m.entrySet()){
+                if(baseline.contains(e.getKey()) != keyed.contains(e.getKey())){
+                    wrong++;
+                }else if(baseline.contains(e.getKey())){
+                    Set<BitSet> baselineSet = baseline.removeNear(e.getKey(), k, e.getValue() / 2);
+                    Set<BitSet> set = keyed.removeNear(e.getKey(), k, e.getValue() / 2);
+
+                    if(TestUtils.setMatches(set, baselineSet))
+                        same++;
+                    else
+                        wrong++;
+                }
+            }
+        }else{
+            ParallelDataStructure baseline = new ParallelNaive();
+            baseline.init(new HashMap<BitSet, Integer>(m), SEQ_LENGTH, k);
+
+            for(Map.Entry<BitSet, Integer> e : m.entrySet()){
+                Set<BitSet> baselineSet = baseline.near(e.getKey(), k, e.getValue() / 2);
+                Set<BitSet> set = keyed.near(e.getKey(), k, e.getValue() / 2);
+
+                if(TestUtils.setMatches(set, baselineSet))
+                    same++;
+                else if(baselineSet.containsAll(set) && set.contains(e.getKey()))
+                    missed++;
+                else
+                    wrong++;
+            }
+        }
+
+        String desc = key.getClass().getSimpleName() + " indexed by " + index.getSimpleName() + " with k = " + k;
+
+        if(key instanceof PrefixKey)
+            desc += " and a prefix of " + key.length(SEQ_LENGTH);
+
+        System.out.println(desc + ": " + same + " same, " + missed + " missed some sequences" + (wrong == 0 ? "" : ", " + wrong + " different (wrong!)"));
+    }
+
+    // deduplicating FASTQ files with a prefix key must give the same reads as without it
+    private static void testFASTQ(Random rand) throws Exception{
+        File in = writeFASTQ(rand);
+        File out = File.createTempFile("umicollapse_test", ".fastq");
+        File keyedOut = File.createTempFile("umicollapse_test", ".fastq");
+        out.deleteOnExit();
+        keyedOut.deleteOnExit();
+
+        new DeduplicateFASTQ().deduplicateAndMerge(in, out, new Directional(), Naive.class, new AvgQualMerge(), -1, 1, 0.5f, false, false);
+        List<String> expected = readSorted(out);
+
+        DeduplicateFASTQ dedup = new DeduplicateFASTQ();
+        dedup.setReadKey(new PrefixKey(10), ParallelBKTree.class);
+        dedup.deduplicateAndMerge(in, keyedOut, new Directional(), Naive.class, new AvgQualMerge(), -1, 1, 0.5f, false, false);
+        List<String> actual = readSorted(keyedOut);
+
+        System.out.println("Prefix keys with -k 1 kept " + actual.size() + " reads, unkeyed kept " + expected.size() + ": " + (expected.equals(actual) ? "same" : "different (wrong!)"));
+    }
+
+    // --key-minimizer prints a warning and merges at most as many reads as without it
+    private static void testMinimizerWarning(Random rand) throws Exception{
+        File in = writeFASTQ(rand);
+        File out = File.createTempFile("umicollapse_test", ".fastq");
+        File keyedOut = File.createTempFile("umicollapse_test", ".fastq");
+        out.deleteOnExit();
+        keyedOut.deleteOnExit();
+
+        String unkeyedErr = runMain("fastq", "-i", in.getPath(), "-o", out.getPath(), "-k", "1");
+        String keyedErr = runMain("fastq", "-i", in.getPath(), "-o", keyedOut.getPath(), "-k", "1", "--key-minimizer", "8");
+        int expected = readSorted(out).size();
+        int actual = readSorted(keyedOut).size();
+
+        System.out.println("Warning with --key-minimizer: " + (keyedErr.contains("--key-minimizer is approximate") ? "printed" : "missing (wrong!)") +
+            ", without it: " + (unkeyedErr.contains("Warning") ? "printed (wrong!)" : "not printed"));
+        System.out.println("Minimizer keys with -k 1 kept " + actual + " reads, unkeyed kept " + expected + (actual >= expected ? "" : " (wrong!)"));
+
+        String res;
+
+        try{
+            runMain("fastq", "-i", in.getPath(), "-o", keyedOut.getPath(), "-k", "1", "--key-prefix", "10", "--key-minimizer", "8");
+            res = "accepted (wrong!)";
+        }catch(IllegalArgumentException e){
+            res = "rejected";
+        }
+
+        System.out.println("Both --key-prefix and --key-minimizer: " + res);
+    }
+
+    // the standard error of a run, which is still printed
+    private static String runMain(String... args){
+        PrintStream err = System.err;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(captured, true));
+
+        try{
+            Main.main(args);
+        }finally{
+            System.setErr(err);
+            System.err.print(captured);
+        }
+
+        return captured.toString();
+    }
+
+    private static File writeFASTQ(Random rand){
+        File in;
+
+        try{
+            in = File.createTempFile("umicollapse_test", ".fastq");
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+
+        in.deleteOnExit();
+        BasicFastqWriter writer = new BasicFastqWriter(in);
+
+        for(FastqRecord record : TestUtils.generateFASTQRecords(20000, SEQ_LENGTH, rand))
+            writer.write(record);
+
+        writer.close();
+        return in;
+    }
+
+    private static List<String> readSorted(File f){
+        List<String> res = new ArrayList<>();
+        FastqReader reader = new FastqReader(f);
+
+        for(FastqRecord record : reader)
+            res.add(record.toFastQString());
+
+        reader.close();
+        res.sort(null);
+        return res;
+    }
+}
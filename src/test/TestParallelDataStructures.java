@@ -4,17 +4,25 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Random;
 
 import umicollapse.util.BitSet;
 import umicollapse.util.Utils;
+import umicollapse.util.ReadFreq;
 import umicollapse.data.*;
 
 public class TestParallelDataStructures{
     public static void main(String[] args){
         ParallelDataStructure baseline = new ParallelNaive();
         ParallelDataStructure[] data = {
+            new ParallelCombo(),
+            new ParallelNgram(),
+            new ParallelSymmetricDelete(),
+            new ParallelTrie(),
             new ParallelBKTree(),
-            new ParallelFenwickBKTree()
+            new ParallelFenwickBKTree(),
+            new ParallelNgramBKTree(),
+            new ParallelFlatBKTree()
         };
 
         String[] s1 = {"AAAA", "AAAT", "CCCC", "CCCG", "TTTT"};
@@ -22,6 +30,48 @@ public class TestParallelDataStructures{
 
         String[] s2 = {"AAAA", "AAAT", "CCCC", "CCCG", "TTTT"};
         test(s2, 1, baseline, data);
+
+        testRandom(50, 5, 10, 1, baseline, data);
+        testRandom(50, 5, 12, 2, baseline, data);
+    }
+
+    // random UMIs with random frequencies, queried with the directional algorithm's frequency threshold
+    private static void testRandom(int numRand, int numDup, int umiLength, int k, ParallelDataStructure baseline, ParallelDataStructure[] data){
+        Map<BitSet, ReadFreq> reads = TestUtils.generateData(numRand, numDup, umiLength, k, 0.5f, new Random(1234));
+        Map<BitSet, Integer> m = new HashMap<>();
+
+        for(Map.Entry<BitSet, ReadFreq> e : reads.entrySet())
+            m.put(e.getKey(), e.getValue().freq);
+
+        baseline.init(new HashMap<BitSet, Integer>(m), umiLength, k);
+
+        for(ParallelDataStructure d : data)
+            d.init(new HashMap<BitSet, Integer>(m), umiLength, k);
+
+        for(ParallelDataStructure d : data){
+            boolean passed = true;
+
+            for(Map.Entry<BitSet, Integer> e : m.entrySet()){
+                int maxFreq = (int)(0.5f * (e.getValue() + 1));
+                Set<BitSet> baselineSet = baseline.near(e.getKey(), k, maxFreq);
+                Set<BitSet> set = d.near(e.getKey(), k, maxFreq);
+
+                if(!TestUtils.setMatches(set, baselineSet)){
+                    System.out.println("\nError");
+                    System.out.println("Data structure\t" + d.getClass().getName());
+                    System.out.println("Max number of edits\t" + k);
+                    System.out.println("Query\t" + Utils.toString(e.getKey(), umiLength));
+                    System.out.println("Max frequency\t" + maxFreq);
+                    System.out.println("Baseline result\t" + baselineSet);
+                    System.out.println("This result\t" + set);
+                    passed = false;
+                    break;
+                }
+            }
+
+            if(passed)
+                System.out.println("Passed: random data structure\t" + d.getClass().getName());
+        }
     }
 
     private static void test(String[] umiList, int k, ParallelDataStructure baseline, ParallelDataStructure[] data){
@@ -0,0 +1,136 @@
+package test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+
+import umicollapse.algo.Adjacency;
+import umicollapse.algo.Algorithm;
+import umicollapse.data.DataStructure;
+import umicollapse.data.Naive;
+import umicollapse.main.DeduplicateSAM;
+import umicollapse.merge.AnyMerge;
+import umicollapse.util.BitSet;
+import umicollapse.util.ClusterTracker;
+import umicollapse.util.Read;
+import umicollapse.util.ReadFreq;
+
+// an algorithm that throws after a few alignment positions must fail the run with -t instead of hanging it
+// the failed run must also stop its threads and delete its temporary files
+public class TestParallelFailure{
+    private static final long TIMEOUT_MILLIS = 60000L;
+
+    public static void main(String[] args) throws Exception{
+        File in = File.createTempFile("umicollapse_test", ".bam");
+        File out = File.createTempFile("umicollapse_test", ".bam");
+        in.deleteOnExit();
+        out.deleteOnExit();
+
+        SAMFileHeader header = TestUtils.generateHeader(2, 100000);
+        List<SAMRecord> records = TestUtils.generateSAMRecords(header, 20000, 2000, 10, 50, new Random(1234));
+        SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, in);
+        File index = new File(in.getPath().replaceAll("\\.bam$", ".bai"));
+        index.deleteOnExit();
+
+        for(SAMRecord record : records)
+            writer.addAlignment(record);
+
+        writer.close();
+
+        test("no -t", 1, dedup -> dedup.deduplicateAndMerge(in, out, new ThrowingAlgorithm(), Naive.class, new AnyMerge(), 10, 1, 0.5f, false, "_", false, false, false, false, false));
+        test("-t 1", 1, dedup -> dedup.deduplicateAndMerge(in, out, new ThrowingAlgorithm(), Naive.class, new AnyMerge(), 10, 1, 0.5f, true, "_", false, false, false, false, false));
+        test("-t 2", 2, dedup -> dedup.deduplicateAndMerge(in, out, new ThrowingAlgorithm(), Naive.class, new AnyMerge(), 10, 1, 0.5f, true, "_", false, false, false, false, false));
+        test("--partitions 4", 2, dedup -> dedup.deduplicateAndMergePartitioned(in, out, new ThrowingAlgorithm(), Naive.class, new AnyMerge(), 10, 1, 0.5f, true, "_", false, false, false, false, false, 4));
+        test("--by-contig", 2, dedup -> dedup.deduplicateAndMergeByContig(in, out, new ThrowingAlgorithm(), Naive.class, new AnyMerge(), 10, 1, 0.5f, "_", false));
+    }
+
+    private static void test(String desc, int threads, Run run) throws Exception{
+        Set<String> oldFiles = tempFiles();
+        Set<Thread> oldThreads = Thread.getAllStackTraces().keySet();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try{
+                DeduplicateSAM dedup = new DeduplicateSAM();
+                dedup.setThreads(threads);
+                dedup.setIOThreads(2);
+                run.run(dedup);
+            }catch(Throwable e){
+                error.set(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        t.join(TIMEOUT_MILLIS);
+
+        String res;
+
+        if(t.isAlive())
+            res = "hung (wrong!)";
+        else if(error.get() == null)
+            res = "finished without an error (wrong!)";
+        else
+            res = "failed with " + error.get();
+
+        System.out.println("Throwing algorithm with " + desc + ": " + res);
+
+        if(t.isAlive())
+            return;
+
+        // the pools are stopped without waiting for their threads to exit
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        Set<Thread> newThreads = newThreads(oldThreads);
+
+        while(!newThreads.isEmpty() && System.currentTimeMillis() < end){
+            Thread.sleep(10);
+            newThreads = newThreads(oldThreads);
+        }
+
+        for(Thread thread : newThreads)
+            System.out.println("Thread left running: " + thread.getName() + " " + Arrays.toString(thread.getStackTrace()) + " (wrong!)");
+
+        Set<String> newFiles = tempFiles();
+        newFiles.removeAll(oldFiles);
+
+        if(!newFiles.isEmpty())
+            System.out.println("Temporary files left behind: " + newFiles + " (wrong!)");
+    }
+
+    private static Set<Thread> newThreads(Set<Thread> oldThreads){
+        Set<Thread> res = new HashSet<>(Thread.getAllStackTraces().keySet());
+        res.removeAll(oldThreads);
+        return res;
+    }
+
+    private static Set<String> tempFiles(){
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list((dir, name) -> name.startsWith("umicollapse_") && !name.startsWith("umicollapse_test"));
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private interface Run{
+        void run(DeduplicateSAM dedup);
+    }
+
+    private static class ThrowingAlgorithm implements Algorithm{
+        private AtomicInteger calls = new AtomicInteger(0);
+
+        @Override
+        public List<Read> apply(Map<BitSet, ReadFreq> reads, DataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
+            if(calls.incrementAndGet() > 10)
+                throw new IllegalStateException("test failure");
+
+            return new Adjacency().apply(reads, data, tracker, umiLength, k, percentage);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import htsjdk.samtools.fastq.FastqRecord;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import umicollapse.util.ParallelFastqReader;
+import umicollapse.util.Utils;
+
+// the reader must give the records of a FASTQ file in order, whether the file is plain (and split into chunks at
+// guessed record starts), gzipped, or BGZF compressed, and even when quality lines start with '@' or '+'
+public class TestParallelFastqReader{
+    // more than the 64MB chunks that plain files are split into
+    private static final long BIG_FILE_SIZE = (1L << 26) + (1L << 24);
+    private static final int SMALL_FILE_RECORDS = 2000;
+    // longer than the window that is first searched for a record start
+    private static final int LONG_READ_LENGTH = 100000;
+    private static final int FULLY_CHECKED_BYTES = 10000;
+
+    public static void main(String[] args) throws Exception{
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ExecutorService ioPool = Executors.newFixedThreadPool(2);
+
+        try{
+            testFindRecordStart();
+            testBigFile(pool, ioPool);
+            testPaired(pool);
+        }finally{
+            pool.shutdown();
+            ioPool.shutdown();
+        }
+    }
+
+    // byte offsets of a small file with tricky quality lines must find the next record start
+    // every offset of the first records is checked, and the rest are sampled, since each search maps a part of the file
+    private static void testFindRecordStart() throws Exception{
+        File f = File.createTempFile("umicollapse_test", ".fastq");
+        f.deleteOnExit();
+        List<Long> starts = new ArrayList<>();
+        long pos = 0L;
+
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(f))){
+            Generator gen = new Generator(1234L, 10, 30);
+
+            for(int i = 0; i < SMALL_FILE_RECORDS; i++){
+                FastqRecord record = i == SMALL_FILE_RECORDS / 2 ? gen.next(LONG_READ_LENGTH) : gen.next();
+                byte[] bytes = toBytes(record);
+                starts.add(pos);
+                out.write(bytes);
+                pos += bytes.length;
+            }
+        }
+
+        Method findRecordStart = ParallelFastqReader.class.getDeclaredMethod("findRecordStart", FileChannel.class, long.class, long.class);
+        findRecordStart.setAccessible(true);
+
+        long size = f.length();
+        int wrong = 0, checked = 0;
+        int next = 0;
+
+        try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)){
+            for(long from = 1L; from < size; from++){
+                while(next < starts.size() && starts.get(next) <= from)
+                    next++;
+
+                long expected = next < starts.size() ? starts.get(next) : size;
+
+                if(from > FULLY_CHECKED_BYTES && from % 97 != 0)
+                    continue;
+
+                long actual = (Long)findRecordStart.invoke(null, channel, size, from);
+
+                if(actual != expected)
+                    wrong++;
+
+                checked++;
+            }
+        }catch(InvocationTargetException e){
+            throw (Exception)e.getCause();
+        }
+
+        System.out.println("Record starts found from " + checked + " offsets: " + (wrong == 0 ? "all right" : wrong + " wrong (wrong!)"));
+    }
+
+    // a plain file that crosses a chunk boundary, and the same file gzipped and BGZF compressed
+    private static void testBigFile(ExecutorService pool, ExecutorService ioPool) throws Exception{
+        File plain = File.createTempFile("umicollapse_test", ".fastq");
+        File gzip = File.createTempFile("umicollapse_test", ".fastq.gz");
+        File bgzf = File.createTempFile("umicollapse_test", ".fastq.gz");
+        plain.deleteOnExit();
+        gzip.deleteOnExit();
+        bgzf.deleteOnExit();
+
+        int numRecords = 0;
+
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(plain), 1 << 20);
+                OutputStream gzipOut = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzip), 1 << 20), 1 << 16);
+                OutputStream bgzfOut = new BlockCompressedOutputStream(bgzf)){
+            Generator gen = new Generator(5678L, 100, 200);
+            long size = 0L;
+
+            while(size < BIG_FILE_SIZE){
+                byte[] bytes = toBytes(gen.next());
+                out.write(bytes);
+                gzipOut.write(bytes);
+                bgzfOut.write(bytes);
+                size += bytes.length;
+                numRecords++;
+            }
+        }
+
+        testRead("plain file over a chunk boundary without a pool", plain, numRecords, 5678L, null, null);
+        testRead("plain file over a chunk boundary with a pool", plain, numRecords, 5678L, pool, null);
+        testRead("gzipped file", gzip, numRecords, 5678L, pool, ioPool);
+        testRead("BGZF file without an I/O pool", bgzf, numRecords, 5678L, pool, null);
+        testRead("BGZF file with an I/O pool", bgzf, numRecords, 5678L, pool, ioPool);
+
+        plain.delete();
+        gzip.delete();
+        bgzf.delete();
+    }
+
+    private static void testRead(String desc, File f, int numRecords, long seed, ExecutorService pool, ExecutorService ioPool){
+        Generator gen = new Generator(seed, 100, 200);
+        AtomicInteger count = new AtomicInteger(0);
+        AtomicInteger wrong = new AtomicInteger(0);
+
+        new ParallelFastqReader(f, ioPool, 4).read(pool, 4, records -> {
+            for(ParallelFastqReader.Record record : records){
+                if(!record.toFastqRecord().toFastQString().equals(gen.next().toFastQString()))
+                    wrong.incrementAndGet();
+
+                count.incrementAndGet();
+            }
+        });
+
+        System.out.println("Reading a " + desc + ": " + count.get() + " records, " +
+            (count.get() == numRecords && wrong.get() == 0 ? "same as the file" : wrong.get() + " different (wrong!)"));
+    }
+
+    // both mates must be read in lockstep, and files with different numbers of reads must be rejected
+    private static void testPaired(ExecutorService pool) throws Exception{
+        File first = writeSmallFile(SMALL_FILE_RECORDS, 1L, false);
+        File second = writeSmallFile(SMALL_FILE_RECORDS, 2L, true);
+        File shorter = writeSmallFile(SMALL_FILE_RECORDS - 1, 2L, false);
+        File longer = writeSmallFile(SMALL_FILE_RECORDS + 1, 2L, true);
+
+        Generator firstGen = new Generator(1L, 10, 30);
+        Generator secondGen = new Generator(2L, 10, 30);
+        AtomicInteger count = new AtomicInteger(0);
+        AtomicInteger wrong = new AtomicInteger(0);
+
+        ParallelFastqReader.readPaired(new ParallelFastqReader(first, null, 4), new ParallelFastqReader(second, null, 4), pool, 4, (a, b) -> {
+            if(!a.toFastqRecord().toFastQString().equals(firstGen.next().toFastQString()) || !b.toFastqRecord().toFastQString().equals(secondGen.next().toFastQString()))
+                wrong.incrementAndGet();
+
+            count.incrementAndGet();
+        });
+
+        System.out.println("Reading paired files: " + count.get() + " pairs, " + (count.get() == SMALL_FILE_RECORDS && wrong.get() == 0 ? "same as the files" : wrong.get() + " different (wrong!)"));
+
+        testUnequal("R2 shorter than R1", first, shorter, pool);
+        testUnequal("R2 longer than R1", first, longer, pool);
+        testUnequal("R1 shorter than R2", shorter, first, pool);
+    }
+
+    private static void testUnequal(String desc, File first, File second, ExecutorService pool){
+        String res;
+
+        try{
+            ParallelFastqReader.readPaired(new ParallelFastqReader(first, null, 4), new ParallelFastqReader(second, null, 4), pool, 4, (a, b) -> {});
+            res = "accepted (wrong!)";
+        }catch(IllegalArgumentException e){
+            res = "rejected";
+        }
+
+        System.out.println("Reading paired files with " + desc + ": " + res);
+    }
+
+    private static File writeSmallFile(int numRecords, long seed, boolean gzipped) throws Exception{
+        File f = File.createTempFile("umicollapse_test", gzipped ? ".fastq.gz" : ".fastq");
+        f.deleteOnExit();
+        Generator gen = new Generator(seed, 10, 30);
+
+        try(OutputStream out = gzipped ? new GZIPOutputStream(new FileOutputStream(f)) : new BufferedOutputStream(new FileOutputStream(f))){
+            for(int i = 0; i < numRecords; i++)
+                out.write(toBytes(gen.next()));
+        }
+
+        return f;
+    }
+
+    private static byte[] toBytes(FastqRecord record){
+        return (record.toFastQString() + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // the same records for the same seed, so the records that are read can be checked without keeping them all
+    // about a third of the quality lines start with '@', and another third start with '+'
+    private static class Generator{
+        private Random rand;
+        private int minLength, maxLength;
+        private int i = 0;
+
+        public Generator(long seed, int minLength, int maxLength){
+            this.rand = new Random(seed);
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+        }
+
+        public FastqRecord next(){
+            return next(minLength + rand.nextInt(maxLength - minLength + 1));
+        }
+
+        public FastqRecord next(int length){
+            String seq = TestUtils.randSeq(length, rand);
+            char[] qual = Utils.toPhred33String(TestUtils.randQual(length, rand)).toCharArray();
+            int first = rand.nextInt(3);
+
+            if(first == 0)
+                qual[0] = '@';
+            else if(first == 1)
+                qual[0] = '+';
+
+            return new FastqRecord("read" + (i++), seq, "", new String(qual));
+        }
+    }
+}
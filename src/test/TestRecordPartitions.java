@@ -0,0 +1,177 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+import umicollapse.algo.Directional;
+import umicollapse.data.Naive;
+import umicollapse.main.DeduplicateSAM;
+import umicollapse.merge.MapQualMerge;
+import umicollapse.util.Alignment;
+import umicollapse.util.BitSet;
+import umicollapse.util.PairedAlignment;
+import umicollapse.util.RecordPartitions;
+import umicollapse.util.SpilledRead;
+import umicollapse.util.Utils;
+
+// reads must come back out of the partition files with the same fields that went in, and deduplicating in
+// partitions must keep the same reads as the default mode
+public class TestRecordPartitions{
+    private static final int NUM_PARTITIONS = 4;
+    // three chunks of encoded bases, so the UMIs are longer than two chunks
+    private static final int LONG_UMI_LENGTH = 60;
+
+    public static void main(String[] args) throws Exception{
+        SAMFileHeader header = TestUtils.generateHeader(3, 100000);
+
+        testRoundTrip(header, false, new Random(1234));
+        testRoundTrip(header, true, new Random(1234));
+        testDeduplicate(header, new Random(1234));
+    }
+
+    private static void testRoundTrip(SAMFileHeader header, boolean paired, Random rand){
+        List<SAMRecord> records = TestUtils.generateSAMRecords(header, 5000, 500, 10, 50, rand);
+        List<List<Entry>> expected = new ArrayList<>();
+
+        for(int i = 0; i < NUM_PARTITIONS; i++)
+            expected.add(new ArrayList<>());
+
+        RecordPartitions partitions = new RecordPartitions(header, NUM_PARTITIONS, paired);
+
+        for(SAMRecord record : records){
+            if(paired){
+                record.setReadPairedFlag(true);
+                record.setInferredInsertSize(rand.nextInt(1001) - 500); // negative for reverse strand mates
+            }
+
+            Entry e = new Entry();
+            e.record = record;
+            e.alignment = Alignment.fromRecord(record, paired);
+            e.umi = Utils.toBitSet(randUMIWithN(rand));
+            e.umiLength = LONG_UMI_LENGTH;
+            e.avgQual = rand.nextInt(42);
+
+            int partition = rand.nextInt(NUM_PARTITIONS);
+            partitions.add(partition, e.record, e.alignment, e.umi, e.umiLength, e.avgQual);
+            expected.get(partition).add(e);
+        }
+
+        partitions.finish();
+
+        int wrong = 0, total = 0;
+
+        for(int i = 0; i < NUM_PARTITIONS; i++){
+            List<Alignment> alignments = new ArrayList<>();
+            List<SpilledRead> reads = new ArrayList<>();
+            partitions.read(i, (alignment, read) -> {
+                alignments.add(alignment);
+                reads.add(read);
+            });
+
+            if(reads.size() != expected.get(i).size()){
+                System.out.println("Partition " + i + " has " + reads.size() + " reads instead of " + expected.get(i).size() + " (wrong!)");
+                continue;
+            }
+
+            // the records are read back out of order, like when they are written after deduplicating
+            List<Integer> order = new ArrayList<>();
+
+            for(int j = 0; j < reads.size(); j++)
+                order.add(j);
+
+            Collections.shuffle(order, rand);
+
+            for(int j : order){
+                Entry e = expected.get(i).get(j);
+                SpilledRead read = reads.get(j);
+                Alignment a = alignments.get(j);
+                boolean same = a.equals(e.alignment) &&
+                    (!paired || ((PairedAlignment)a).getTLen() == ((PairedAlignment)e.alignment).getTLen()) &&
+                    read.getUMI(e.umiLength).equals(e.umi) && read.getUMILength() == e.umiLength &&
+                    read.getAvgQual() == e.avgQual && read.getMapQual() == e.record.getMappingQuality() &&
+                    read.toSAMRecord().getSAMString().equals(e.record.getSAMString());
+
+                if(!same)
+                    wrong++;
+
+                total++;
+            }
+
+            partitions.delete(i);
+        }
+
+        partitions.close();
+
+        System.out.println("Round trip of " + total + " " + (paired ? "paired" : "single") + " reads through " + NUM_PARTITIONS + " partitions: " + (wrong == 0 && total == records.size() ? "same" : wrong + " different (wrong!)"));
+    }
+
+    private static void testDeduplicate(SAMFileHeader header, Random rand) throws Exception{
+        File in = File.createTempFile("umicollapse_test", ".bam");
+        File out = File.createTempFile("umicollapse_test", ".bam");
+        File partitionedOut = File.createTempFile("umicollapse_test", ".bam");
+        in.deleteOnExit();
+        out.deleteOnExit();
+        partitionedOut.deleteOnExit();
+
+        // --partitions is for unsorted inputs
+        List<SAMRecord> records = TestUtils.generateSAMRecords(header, 30000, 3000, 10, 50, rand);
+        Collections.shuffle(records, rand);
+        SAMFileHeader unsorted = header.clone();
+        unsorted.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(unsorted, true, in);
+
+        for(SAMRecord record : records)
+            writer.addAlignment(record);
+
+        writer.close();
+
+        new DeduplicateSAM().deduplicateAndMerge(in, out, new Directional(), Naive.class, new MapQualMerge(), 10, 1, 0.5f, false, "_", false, false, false, false, false);
+        List<String> expected = readSorted(out);
+
+        for(int threads : new int[]{1, 2}){
+            DeduplicateSAM dedup = new DeduplicateSAM();
+            dedup.setThreads(threads);
+            dedup.deduplicateAndMergePartitioned(in, partitionedOut, new Directional(), Naive.class, new MapQualMerge(), 10, 1, 0.5f, threads > 1, "_", false, false, false, false, false, NUM_PARTITIONS);
+            List<String> actual = readSorted(partitionedOut);
+            System.out.println("--partitions " + NUM_PARTITIONS + " with " + threads + " thread(s) kept " + actual.size() + " reads, the default mode kept " + expected.size() + ": " + (expected.equals(actual) ? "same" : "different (wrong!)"));
+        }
+    }
+
+    private static String randUMIWithN(Random rand){
+        char[] res = TestUtils.randUMI(LONG_UMI_LENGTH, rand).toCharArray();
+
+        if(rand.nextInt(4) == 0)
+            res[rand.nextInt(res.length)] = 'N';
+
+        return new String(res);
+    }
+
+    private static List<String> readSorted(File f) throws Exception{
+        List<String> res = new ArrayList<>();
+        SamReader reader = SamReaderFactory.makeDefault().open(f);
+
+        for(SAMRecord record : reader)
+            res.add(record.getSAMString());
+
+        reader.close();
+        res.sort(null);
+        return res;
+    }
+
+    private static class Entry{
+        SAMRecord record;
+        Alignment alignment;
+        BitSet umi;
+        int umiLength, avgQual;
+    }
+}
@@ -0,0 +1,115 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+
+import umicollapse.algo.Directional;
+import umicollapse.data.Naive;
+import umicollapse.main.DeduplicateSAM;
+import umicollapse.merge.MapQualMerge;
+
+// streaming must keep the same reads as the default mode on clipped reads, and fail when a read is clipped by more than the window
+public class TestStreaming{
+    private static final int READ_LENGTH = 50;
+    private static final int MAX_CLIP = 40;
+
+    public static void main(String[] args) throws Exception{
+        File in = File.createTempFile("umicollapse_test", ".bam");
+        File out = File.createTempFile("umicollapse_test", ".bam");
+        File streamOut = File.createTempFile("umicollapse_test", ".bam");
+        in.deleteOnExit();
+        out.deleteOnExit();
+        streamOut.deleteOnExit();
+
+        SAMFileHeader header = TestUtils.generateHeader(2, 100000);
+        List<SAMRecord> records = generateClippedRecords(header, 30000, new Random(1234));
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, in);
+
+        for(SAMRecord record : records)
+            writer.addAlignment(record);
+
+        writer.close();
+
+        new DeduplicateSAM().deduplicateAndMerge(in, out, new Directional(), Naive.class, new MapQualMerge(), 10, 1, 0.5f, false, "_", false, false, false, false, false);
+        List<String> expected = readSorted(out);
+
+        for(int threads : new int[]{1, 2}){
+            new DeduplicateSAM().deduplicateAndMergeStreaming(in, streamOut, new Directional(), Naive.class, new MapQualMerge(), 10, 1, 0.5f, "_", false, false, false, false, false, MAX_CLIP, threads);
+            List<String> actual = readSorted(streamOut);
+            System.out.println("Streaming with " + threads + " thread(s) kept " + actual.size() + " reads, the default mode kept " + expected.size() + ": " + (expected.equals(actual) ? "same" : "different (wrong!)"));
+        }
+
+        String res;
+
+        try{
+            new DeduplicateSAM().deduplicateAndMergeStreaming(in, streamOut, new Directional(), Naive.class, new MapQualMerge(), 10, 1, 0.5f, "_", false, false, false, false, false, MAX_CLIP / 4, 1);
+            res = "finished without an error (wrong!)";
+        }catch(IllegalArgumentException e){
+            res = e.getMessage().contains("--stream-window") ? "failed" : "failed with the wrong error (wrong!): " + e.getMessage();
+        }
+
+        System.out.println("Streaming with a window smaller than the clipping: " + res);
+    }
+
+    // coordinate sorted reads with many reads at each alignment start, and soft clips up to MAX_CLIP bases on the 5' end
+    // a few UMIs are used for each unclipped 5' position, so reads with different clips collapse together
+    private static List<SAMRecord> generateClippedRecords(SAMFileHeader header, int numReads, Random rand){
+        List<SAMRecord> res = new ArrayList<>(numReads);
+        int numRefs = header.getSequenceDictionary().size();
+        int start = MAX_CLIP + 1;
+        int ref = 0;
+
+        for(int i = 0; i < numReads; i++){
+            if(i == (long)numReads * (ref + 1) / numRefs){
+                ref++;
+                start = MAX_CLIP + 1;
+            }
+
+            start += rand.nextInt(3) == 0 ? 1 : 0;
+            boolean reverse = rand.nextBoolean();
+            int clip = rand.nextInt(MAX_CLIP + 1);
+            String umi = "AAAAAAAA" + TestUtils.randUMI(2, rand);
+
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i + "_" + umi);
+            record.setReferenceIndex(ref);
+            record.setAlignmentStart(start);
+
+            if(clip == 0)
+                record.setCigarString(READ_LENGTH + "M");
+            else if(reverse)
+                record.setCigarString((READ_LENGTH - clip) + "M" + clip + "S");
+            else
+                record.setCigarString(clip + "S" + (READ_LENGTH - clip) + "M");
+
+            record.setReadNegativeStrandFlag(reverse);
+            record.setMappingQuality(rand.nextInt(61));
+            record.setReadString(TestUtils.randSeq(READ_LENGTH, rand));
+            record.setBaseQualities(TestUtils.randQual(READ_LENGTH, rand));
+            res.add(record);
+        }
+
+        return res;
+    }
+
+    private static List<String> readSorted(File f) throws Exception{
+        List<String> res = new ArrayList<>();
+
+        try(SamReader reader = SamReaderFactory.makeDefault().open(f)){
+            for(SAMRecord record : reader)
+                res.add(record.getSAMString());
+        }
+
+        res.sort(null);
+        return res;
+    }
+}
@@ -1,6 +1,7 @@
 package test;
 
 import java.util.List;
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Map;
@@ -12,6 +13,11 @@ import umicollapse.util.Utils;
 import umicollapse.util.Read;
 import umicollapse.util.ReadFreq;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.fastq.FastqRecord;
+
 public class TestUtils{
     public static boolean setMatches(Set<BitSet> a, Set<BitSet> b){
         if(a.size() != b.size())
@@ -21,6 +27,11 @@ public class TestUtils{
     }
 
     public static Map<BitSet, ReadFreq> generateData(int numRand, int numDup, int umiLength, int k, float percentage, Random rand){
+        return generateData(numRand, numDup, umiLength, k, percentage, 1.0f, rand);
+    }
+
+    // higher skew makes the frequencies of the duplicate UMIs smaller relative to the random UMIs
+    public static Map<BitSet, ReadFreq> generateData(int numRand, int numDup, int umiLength, int k, float percentage, float skew, Random rand){
         float maxFreq = 1e7f;
         Map<BitSet, ReadFreq> res = new HashMap<>();
 
@@ -32,7 +43,7 @@ public class TestUtils{
 
             for(int j = 0; j < numDup; j++){
                 // freq within bottom (70% * percentage) of maxFreq
-                r = new ReadFreq(null, (int)(maxFreq * (0.7f * rand.nextFloat() * percentage)));
+                r = new ReadFreq(null, (int)(maxFreq * (0.7f * (float)Math.pow(rand.nextFloat(), skew) * percentage)));
                 res.put(Utils.toBitSet(randEdits(umi, k, rand)), r);
             }
         }
@@ -61,6 +72,75 @@ public class TestUtils{
         return new String(res);
     }
 
+    public static SAMFileHeader generateHeader(int numRefs, int refLength){
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+        for(int i = 0; i < numRefs; i++)
+            header.addSequence(new SAMSequenceRecord("chr" + (i + 1), refLength));
+
+        return header;
+    }
+
+    // coordinate sorted reads spread evenly over the alignment positions, with the UMI in the read name like in the test SAM files
+    // about half of the reads at each position have a UMI within one edit of the previous UMI
+    public static List<SAMRecord> generateSAMRecords(SAMFileHeader header, int numReads, int numPositions, int umiLength, int readLength, Random rand){
+        List<SAMRecord> res = new ArrayList<>(numReads);
+        int numRefs = header.getSequenceDictionary().size();
+        int perRef = (numPositions + numRefs - 1) / numRefs;
+        String umi = randUMI(umiLength, rand);
+
+        for(int i = 0; i < numReads; i++){
+            int pos = (int)((long)i * numPositions / numReads);
+            umi = rand.nextBoolean() ? randEdits(umi, 1, rand) : randUMI(umiLength, rand);
+            int clip = rand.nextInt(3);
+
+            SAMRecord record = new SAMRecord(header);
+            record.setReadName("read" + i + "_" + umi);
+            record.setReferenceIndex(pos / perRef);
+            record.setAlignmentStart((pos % perRef) * readLength + 1);
+            record.setCigarString(clip == 0 ? (readLength + "M") : (clip + "S" + (readLength - clip) + "M"));
+            record.setReadNegativeStrandFlag(rand.nextBoolean());
+            record.setMappingQuality(rand.nextInt(61));
+            record.setReadString(randSeq(readLength, rand));
+            record.setBaseQualities(randQual(readLength, rand));
+            res.add(record);
+        }
+
+        return res;
+    }
+
+    // about half of the reads are within one edit of the previous read
+    public static List<FastqRecord> generateFASTQRecords(int numReads, int readLength, Random rand){
+        List<FastqRecord> res = new ArrayList<>(numReads);
+        String seq = randSeq(readLength, rand);
+
+        for(int i = 0; i < numReads; i++){
+            seq = rand.nextBoolean() ? randEdits(seq, 1, rand) : randSeq(readLength, rand);
+            res.add(new FastqRecord("read" + i, seq, "", Utils.toPhred33String(randQual(readLength, rand))));
+        }
+
+        return res;
+    }
+
+    public static String randSeq(int n, Random rand){
+        char[] res = new char[n];
+
+        for(int i = 0; i < n; i++)
+            res[i] = Read.ALPHABET[rand.nextInt(Read.ALPHABET.length - 1)]; // no N
+
+        return new String(res);
+    }
+
+    public static byte[] randQual(int n, Random rand){
+        byte[] res = new byte[n];
+
+        for(int i = 0; i < n; i++)
+            res[i] = (byte)(rand.nextInt(40) + 2);
+
+        return res;
+    }
+
     public static char pick(char[] alphabet, char exclude, Random rand){
         int idx = rand.nextInt(alphabet.length - 1) + 1;
 
@@ -1,7 +1,6 @@
 package umicollapse.algo;
 
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -10,13 +9,15 @@ import umicollapse.util.BitSet;
 import umicollapse.util.Read;
 import umicollapse.util.ReadFreq;
 import umicollapse.util.UmiFreq;
+import umicollapse.util.UmiFreqMap;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.Metrics;
 import umicollapse.data.DataStructure;
 
 public class Adjacency implements Algorithm{
     @Override
     public List<Read> apply(Map<BitSet, ReadFreq> reads, DataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
-        Map<BitSet, Integer> m = new HashMap<>();
+        UmiFreqMap m = new UmiFreqMap(reads.size());
         UmiFreq[] freq = new UmiFreq[reads.size()];
         List<Read> res = new ArrayList<>();
         int idx = 0;
@@ -32,6 +33,7 @@ public class Adjacency implements Algorithm{
 
         for(int i = 0; i < freq.length; i++){
             if(data.contains(freq[i].umi)){
+                Metrics.countQueries(1);
                 tracker.addAll(data.removeNear(freq[i].umi, k, Integer.MAX_VALUE), reads);
                 tracker.track(freq[i].umi, freq[i].readFreq.read);
                 res.add(freq[i].readFreq.read);
@@ -3,20 +3,21 @@ package umicollapse.algo;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Set;
 
 import umicollapse.util.BitSet;
 import umicollapse.data.DataStructure;
 import umicollapse.util.ReadFreq;
 import umicollapse.util.UmiFreq;
+import umicollapse.util.UmiFreqMap;
 import umicollapse.util.Read;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.Metrics;
 
 public class ConnectedComponents implements Algorithm{
     @Override
     public List<Read> apply(Map<BitSet, ReadFreq> reads, DataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
-        Map<BitSet, Integer> m = new HashMap<>();
+        UmiFreqMap m = new UmiFreqMap(reads.size());
 
         for(Map.Entry<BitSet, ReadFreq> e : reads.entrySet())
             m.put(e.getKey(), e.getValue().freq);
@@ -37,6 +38,7 @@ public class ConnectedComponents implements Algorithm{
 
     private UmiFreq visitAndRemove(BitSet u, Map<BitSet, ReadFreq> reads, DataStructure data, ClusterTracker tracker, int k){
         UmiFreq max = new UmiFreq(u, reads.get(u));
+        Metrics.countQueries(1);
         Set<BitSet> c = data.removeNear(u, k, Integer.MAX_VALUE);
         tracker.addAll(c, reads);
 
@@ -1,7 +1,6 @@
 package umicollapse.algo;
 
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.ArrayList;
@@ -12,14 +11,16 @@ import umicollapse.data.DataStructure;
 import umicollapse.util.Read;
 import umicollapse.util.ReadFreq;
 import umicollapse.util.UmiFreq;
+import umicollapse.util.UmiFreqMap;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.Metrics;
 
 public class Directional implements Algorithm{
     @Override
     public List<Read> apply(Map<BitSet, ReadFreq> reads, DataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
         UmiFreq[] freq = new UmiFreq[reads.size()];
         List<Read> res = new ArrayList<>();
-        Map<BitSet, Integer> m = new HashMap<>();
+        UmiFreqMap m = new UmiFreqMap(reads.size());
         int idx = 0;
 
         for(Map.Entry<BitSet, ReadFreq> e : reads.entrySet()){
@@ -43,6 +44,7 @@ public class Directional implements Algorithm{
     }
 
     private void visitAndRemove(BitSet u, Map<BitSet, ReadFreq> reads, DataStructure data, ClusterTracker tracker, int k, float percentage){
+        Metrics.countQueries(1);
         Set<BitSet> c = data.removeNear(u, k, (int)(percentage * (reads.get(u).freq + 1)));
         tracker.addAll(c, reads);
 
@@ -1,7 +1,6 @@
 package umicollapse.algo;
 
 import java.util.Map;
-import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
@@ -13,17 +12,15 @@ import umicollapse.util.BitSet;
 import umicollapse.util.Read;
 import umicollapse.util.ReadFreq;
 import umicollapse.util.UmiFreq;
+import umicollapse.util.UmiFreqMap;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.Metrics;
 import umicollapse.data.ParallelDataStructure;
 
 public class ParallelAdjacency implements ParallelAlgorithm{
     @Override
     public List<Read> apply(Map<BitSet, ReadFreq> reads, ParallelDataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
-        if(tracker.shouldTrack()){
-            throw new UnsupportedOperationException();
-        }
-
-        Map<BitSet, Integer> m = new HashMap<>();
+        UmiFreqMap m = new UmiFreqMap(reads.size());
         UmiFreq[] freq = new UmiFreq[reads.size()];
         List<Read> res = new ArrayList<>();
         int idx = 0;
@@ -34,7 +31,8 @@ public class ParallelAdjacency implements ParallelAlgorithm{
             idx++;
         }
 
-        Arrays.parallelSort(freq, (a, b) -> b.readFreq.freq - a.readFreq.freq);
+        // parallelSort does not keep UMIs with the same frequency in order, so it would pick different clusters than the serial algorithm
+        Arrays.sort(freq, (a, b) -> b.readFreq.freq - a.readFreq.freq);
         data.init(m, umiLength, k);
 
         List<Set<BitSet>> adj = new ArrayList<>();
@@ -44,12 +42,22 @@ public class ParallelAdjacency implements ParallelAlgorithm{
 
         IntStream.range(0, freq.length).parallel()
             .forEach(i -> adj.set(i, data.near(freq[i].umi, k, Integer.MAX_VALUE)));
+        Metrics.countQueries(freq.length);
 
         Set<BitSet> visited = new HashSet<>();
 
         for(int i = 0; i < freq.length; i++){
             if(!visited.contains(freq[i].umi)){
-                visited.addAll(adj.get(i));
+                Set<BitSet> cluster = new HashSet<>();
+
+                // UMIs that are already in an earlier cluster stay there
+                for(BitSet v : adj.get(i)){
+                    if(visited.add(v))
+                        cluster.add(v);
+                }
+
+                tracker.addAll(cluster, reads);
+                tracker.track(freq[i].umi, freq[i].readFreq.read);
                 res.add(freq[i].readFreq.read);
             }
         }
@@ -11,17 +11,16 @@ import java.util.stream.IntStream;
 import umicollapse.util.BitSet;
 import umicollapse.data.ParallelDataStructure;
 import umicollapse.util.ReadFreq;
+import umicollapse.util.UmiFreq;
+import umicollapse.util.UmiFreqMap;
 import umicollapse.util.Read;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.Metrics;
 
 public class ParallelConnectedComponents implements ParallelAlgorithm{
     @Override
     public List<Read> apply(Map<BitSet, ReadFreq> reads, ParallelDataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
-        if(tracker.shouldTrack()){
-            throw new UnsupportedOperationException();
-        }
-
-        Map<BitSet, Integer> m = new HashMap<>();
+        UmiFreqMap m = new UmiFreqMap(reads.size());
         BitSet[] idxToUMI = new BitSet[reads.size()];
 
         int idx = 0;
@@ -40,6 +39,7 @@ public class ParallelConnectedComponents implements ParallelAlgorithm{
 
         IntStream.range(0, reads.size()).parallel()
             .forEach(i -> adjIdx.set(i, data.near(idxToUMI[i], k, Integer.MAX_VALUE)));
+        Metrics.countQueries(reads.size());
 
         Map<BitSet, Set<BitSet>> adj = new HashMap<>();
 
@@ -50,28 +50,34 @@ public class ParallelConnectedComponents implements ParallelAlgorithm{
         Set<BitSet> visited = new HashSet<>();
 
         for(BitSet umi : reads.keySet()){
-            if(!visited.contains(umi))
-                res.add(visitAndRemove(umi, reads, adj, visited).read);
+            if(!visited.contains(umi)){
+                Set<BitSet> cluster = new HashSet<>();
+                UmiFreq umiFreq = visitAndRemove(umi, reads, adj, visited, cluster);
+                tracker.addAll(cluster, reads);
+                tracker.track(umiFreq.umi, umiFreq.readFreq.read);
+                res.add(umiFreq.readFreq.read);
+            }
         }
 
         return res;
     }
 
-    private ReadFreq visitAndRemove(BitSet u, Map<BitSet, ReadFreq> reads, Map<BitSet, Set<BitSet>> adj, Set<BitSet> visited){
+    private UmiFreq visitAndRemove(BitSet u, Map<BitSet, ReadFreq> reads, Map<BitSet, Set<BitSet>> adj, Set<BitSet> visited, Set<BitSet> cluster){
         if(visited.contains(u))
             return null;
 
-        ReadFreq max = reads.get(u);
+        UmiFreq max = new UmiFreq(u, reads.get(u));
         Set<BitSet> c = adj.get(u);
         visited.add(u);
+        cluster.add(u);
 
         for(BitSet v : c){
             if(u.equals(v))
                 continue;
 
-            ReadFreq r = visitAndRemove(v, reads, adj, visited);
+            UmiFreq r = visitAndRemove(v, reads, adj, visited, cluster);
 
-            if(r != null && r.freq > max.freq)
+            if(r != null && r.readFreq.freq > max.readFreq.freq)
                 max = r;
         }
 
@@ -14,18 +14,16 @@ import umicollapse.data.ParallelDataStructure;
 import umicollapse.util.Read;
 import umicollapse.util.ReadFreq;
 import umicollapse.util.UmiFreq;
+import umicollapse.util.UmiFreqMap;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.Metrics;
 
 public class ParallelDirectional implements ParallelAlgorithm{
     @Override
     public List<Read> apply(Map<BitSet, ReadFreq> reads, ParallelDataStructure data, ClusterTracker tracker, int umiLength, int k, float percentage){
-        if(tracker.shouldTrack()){
-            throw new UnsupportedOperationException();
-        }
-
         UmiFreq[] freq = new UmiFreq[reads.size()];
         List<Read> res = new ArrayList<>();
-        Map<BitSet, Integer> m = new HashMap<>();
+        UmiFreqMap m = new UmiFreqMap(reads.size());
         int idx = 0;
 
         for(Map.Entry<BitSet, ReadFreq> e : reads.entrySet()){
@@ -34,7 +32,8 @@ public class ParallelDirectional implements ParallelAlgorithm{
             idx++;
         }
 
-        Arrays.parallelSort(freq, (a, b) -> b.readFreq.freq - a.readFreq.freq);
+        // parallelSort does not keep UMIs with the same frequency in order, so it would pick different clusters than the serial algorithm
+        Arrays.sort(freq, (a, b) -> b.readFreq.freq - a.readFreq.freq);
         data.init(m, umiLength, k);
 
         List<Set<BitSet>> adjIdx = new ArrayList<>();
@@ -44,6 +43,7 @@ public class ParallelDirectional implements ParallelAlgorithm{
 
         IntStream.range(0, freq.length).parallel()
             .forEach(i -> adjIdx.set(i, data.near(freq[i].umi, k, (int)(percentage * (freq[i].readFreq.freq + 1)))));
+        Metrics.countQueries(freq.length);
 
         Map<BitSet, Set<BitSet>> adj = new HashMap<>();
 
@@ -54,7 +54,10 @@ public class ParallelDirectional implements ParallelAlgorithm{
 
         for(int i = 0; i < freq.length; i++){
             if(!visited.contains(freq[i].umi)){
-                visitAndRemove(freq[i].umi, reads, adj, visited);
+                Set<BitSet> cluster = new HashSet<>();
+                visitAndRemove(freq[i].umi, reads, adj, visited, cluster);
+                tracker.addAll(cluster, reads);
+                tracker.track(freq[i].umi, freq[i].readFreq.read);
                 res.add(freq[i].readFreq.read);
             }
         }
@@ -62,18 +65,20 @@ public class ParallelDirectional implements ParallelAlgorithm{
         return res;
     }
 
-    private void visitAndRemove(BitSet u, Map<BitSet, ReadFreq> reads, Map<BitSet, Set<BitSet>> adj, Set<BitSet> visited){
+    // the UMIs visited from the same starting UMI make up its cluster
+    private void visitAndRemove(BitSet u, Map<BitSet, ReadFreq> reads, Map<BitSet, Set<BitSet>> adj, Set<BitSet> visited, Set<BitSet> cluster){
         if(visited.contains(u))
             return;
 
         Set<BitSet> c = adj.get(u);
         visited.add(u);
+        cluster.add(u);
 
         for(BitSet v : c){
             if(u.equals(v))
                 continue;
 
-            visitAndRemove(v, reads, adj, visited);
+            visitAndRemove(v, reads, adj, visited, cluster);
         }
     }
 }
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.IntStream;
 import jdk.incubator.vector.IntVector;
 import jdk.incubator.vector.VectorSpecies;
@@ -87,7 +88,8 @@ public class BKTree implements DataStructure{
             int lo = Math.max(dist - k, 0);
             int hi = Math.min(dist + k, umiLength);
 
-            if(forkJoinEnabled) {
+            // only forks when already running on the pool of the run, never onto the common pool
+            if(forkJoinEnabled && ForkJoinTask.inForkJoinPool()) {
                 List<Integer> indices = new ArrayList<>();
                 for(int i = 0; i < umiLength + 1; i++){
                     if(curr.subtreeExists(i))
@@ -7,15 +7,18 @@ import java.util.HashSet;
 
 import umicollapse.util.BitSet;
 import umicollapse.util.Read;
+import umicollapse.util.Metrics;
 import static umicollapse.util.Utils.charSet;
 import static umicollapse.util.Utils.charEquals;
+import static umicollapse.util.UmiFreqMap.getFreq;
 
 public class Combo implements DataStructure{
-    private Map<BitSet, Integer> umiFreq;
-    private int umiLength;
+    protected Map<BitSet, Integer> umiFreq;
+    protected int umiLength;
 
     @Override
     public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
+        Metrics.distUncounted(); // UMIs are matched one character at a time
         this.umiFreq = umiFreq;
         this.umiLength = umiLength;
     }
@@ -32,7 +35,9 @@ public class Combo implements DataStructure{
             return;
 
         if(idx >= umiLength){
-            if(umiFreq.containsKey(curr) && (k == K || umiFreq.get(curr) <= maxFreq)){
+            int freq = getFreq(umiFreq, curr);
+
+            if(freq >= 0 && (k == K || freq <= maxFreq)){
                 res.add(curr.clone());
                 umiFreq.remove(curr);
             }
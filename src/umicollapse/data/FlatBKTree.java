@@ -0,0 +1,196 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+
+import umicollapse.util.BitSet;
+import static umicollapse.util.Utils.umiDist;
+
+// same BK-tree as BKTree, but stored as flat arrays instead of node objects
+// nodes are laid out in BFS order, so the children of each node are contiguous and sorted by distance,
+// and only the distances that actually have a child take up space
+public class FlatBKTree implements DataStructure{
+    private Set<BitSet> s;
+    protected int umiLength;
+
+    // indexed by node, in BFS order
+    protected BitSet[] umis;
+    protected int[] freq, minFreq;
+    protected int[] dist; // distance to the parent node
+    protected int[] childStart, childCount;
+    private boolean[] exists, subtreeExists;
+
+    @Override
+    public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
+        this.s = umiFreq.keySet();
+        this.umiLength = umiLength;
+
+        int n = umiFreq.size();
+
+        // build the tree with linked lists of children first, in insertion order
+        BitSet[] tempUMIs = new BitSet[n];
+        int[] tempFreq = new int[n];
+        int[] tempMinFreq = new int[n];
+        int[] tempDist = new int[n];
+        int[] firstChild = new int[n];
+        int[] nextSibling = new int[n];
+        int idx = 0;
+
+        for(Map.Entry<BitSet, Integer> e : umiFreq.entrySet()){
+            tempUMIs[idx] = e.getKey();
+            tempFreq[idx] = e.getValue();
+            tempMinFreq[idx] = e.getValue();
+            firstChild[idx] = -1;
+            nextSibling[idx] = -1;
+
+            if(idx > 0)
+                insert(idx, tempUMIs, tempFreq, tempMinFreq, tempDist, firstChild, nextSibling);
+
+            idx++;
+        }
+
+        // then lay out the nodes in BFS order
+        int[] order = new int[n];
+        this.childStart = new int[n];
+        this.childCount = new int[n];
+        int tail = n > 0 ? 1 : 0;
+
+        for(int head = 0; head < tail; head++){
+            int start = tail;
+
+            for(int c = firstChild[order[head]]; c != -1; c = nextSibling[c]){
+                int i = tail++;
+
+                // insertion sort by distance, since there are at most umiLength + 1 children
+                while(i > start && tempDist[order[i - 1]] > tempDist[c]){
+                    order[i] = order[i - 1];
+                    i--;
+                }
+
+                order[i] = c;
+            }
+
+            childStart[head] = start;
+            childCount[head] = tail - start;
+        }
+
+        this.umis = new BitSet[n];
+        this.freq = new int[n];
+        this.minFreq = new int[n];
+        this.dist = new int[n];
+        this.exists = new boolean[n];
+        this.subtreeExists = new boolean[n];
+
+        for(int i = 0; i < n; i++){
+            umis[i] = tempUMIs[order[i]];
+            freq[i] = tempFreq[order[i]];
+            minFreq[i] = tempMinFreq[order[i]];
+            dist[i] = tempDist[order[i]];
+            exists[i] = true;
+            subtreeExists[i] = true;
+        }
+    }
+
+    private void insert(int node, BitSet[] umis, int[] freq, int[] minFreq, int[] dist, int[] firstChild, int[] nextSibling){
+        int curr = 0;
+
+        while(true){
+            int d = umiDist(umis[node], umis[curr]);
+            minFreq[curr] = Math.min(minFreq[curr], freq[node]);
+
+            int c = firstChild[curr];
+
+            while(c != -1 && dist[c] != d)
+                c = nextSibling[c];
+
+            if(c == -1){
+                dist[node] = d;
+                nextSibling[node] = firstChild[curr];
+                firstChild[curr] = node;
+                return;
+            }
+
+            curr = c;
+        }
+    }
+
+    @Override
+    public Set<BitSet> removeNear(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+
+        if(umis.length == 0)
+            return res;
+
+        if(maxFreq != Integer.MAX_VALUE) // always remove the queried UMI
+            recursiveRemoveNear(umi, 0, 0, Integer.MAX_VALUE, res);
+
+        recursiveRemoveNear(umi, 0, k, maxFreq, res);
+        return res;
+    }
+
+    private void recursiveRemoveNear(BitSet umi, int curr, int k, int maxFreq, Set<BitSet> res){
+        int d = umiDist(umi, umis[curr]);
+
+        if(d <= k && exists[curr] && freq[curr] <= maxFreq){
+            res.add(umis[curr]);
+            exists[curr] = false;
+            s.remove(umis[curr]);
+        }
+
+        boolean currSubtreeExists = exists[curr];
+        int currMinFreq = exists[curr] ? freq[curr] : Integer.MAX_VALUE;
+        int lo = Math.max(d - k, 0);
+        int hi = Math.min(d + k, umiLength);
+        int end = childStart[curr] + childCount[curr];
+
+        for(int c = childStart[curr]; c < end; c++){
+            if(subtreeExists[c]){
+                if(dist[c] >= lo && dist[c] <= hi && minFreq[c] <= maxFreq)
+                    recursiveRemoveNear(umi, c, k, maxFreq, res);
+
+                if(subtreeExists[c]){
+                    currMinFreq = Math.min(currMinFreq, minFreq[c]);
+                    currSubtreeExists = true;
+                }
+            }
+        }
+
+        subtreeExists[curr] = currSubtreeExists;
+        minFreq[curr] = currMinFreq;
+    }
+
+    @Override
+    public boolean contains(BitSet umi){
+        return s.contains(umi);
+    }
+
+    @Override
+    public Map<String, Float> stats(){
+        Map<String, Float> res = new HashMap<>();
+        int[] depth = new int[umis.length];
+        int leaves = 0;
+        int maxDepth = 0;
+        double depthSum = 0.0;
+
+        if(umis.length > 0)
+            depth[0] = 1;
+
+        // parents always come before their children in BFS order
+        for(int i = 0; i < umis.length; i++){
+            for(int c = childStart[i]; c < childStart[i] + childCount[i]; c++)
+                depth[c] = depth[i] + 1;
+
+            if(childCount[i] == 0){
+                leaves++;
+                maxDepth = Math.max(maxDepth, depth[i]);
+                depthSum += depth[i];
+            }
+        }
+
+        res.put("max depth", (float)maxDepth);
+        res.put("avg depth", (float)(depthSum / leaves));
+        return res;
+    }
+}
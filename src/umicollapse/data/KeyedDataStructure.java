@@ -0,0 +1,105 @@
+package umicollapse.data;
+
+import umicollapse.util.BitSet;
+import static umicollapse.util.Utils.umiDist;
+import static umicollapse.util.UmiFreqMap.getFreq;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+
+// indexes shorter keys of long sequences (like whole reads in FASTQ mode) instead of the sequences themselves
+// the index only finds candidates by their keys, and each candidate is then checked against the whole sequence
+// with exact keys (see ReadKey), the index is searched within k and the result is the same as indexing the sequences
+// otherwise, only the sequences with the same key are candidates
+// the index is never changed after init, so this is both a serial and a parallel data structure
+public class KeyedDataStructure implements DataStructure, ParallelDataStructure{
+    private ParallelDataStructure index;
+    private ReadKey key;
+    private Map<BitSet, Integer> umiFreq;
+    private Map<BitSet, List<BitSet>> buckets;
+    private int umiLength;
+
+    public KeyedDataStructure(ParallelDataStructure index, ReadKey key){
+        this.index = index;
+        this.key = key;
+    }
+
+    @Override
+    public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
+        this.umiFreq = umiFreq;
+        this.umiLength = umiLength;
+        this.buckets = new HashMap<>();
+        Map<BitSet, Integer> keyFreq = new HashMap<>();
+
+        for(BitSet umi : umiFreq.keySet()){
+            BitSet k = key.apply(umi, umiLength);
+
+            if(!buckets.containsKey(k))
+                buckets.put(k, new ArrayList<BitSet>(1));
+
+            buckets.get(k).add(umi);
+            keyFreq.put(k, 1); // the frequencies are only checked for the whole sequences
+        }
+
+        if(key.isExact())
+            index.init(keyFreq, key.length(umiLength), maxEdits);
+    }
+
+    @Override
+    public Set<BitSet> removeNear(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = near(umi, k, maxFreq);
+
+        for(BitSet o : res)
+            umiFreq.remove(o);
+
+        return res;
+    }
+
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+        BitSet umiKey = key.apply(umi, umiLength);
+
+        if(key.isExact()){
+            for(BitSet o : index.near(umiKey, k, Integer.MAX_VALUE))
+                addNear(umi, buckets.get(o), k, maxFreq, res);
+        }else{
+            addNear(umi, buckets.get(umiKey), k, maxFreq, res);
+        }
+
+        return res;
+    }
+
+    private void addNear(BitSet umi, List<BitSet> bucket, int k, int maxFreq, Set<BitSet> res){
+        if(bucket == null)
+            return;
+
+        for(BitSet o : bucket){
+            int f = getFreq(umiFreq, o);
+
+            if(f < 0) // already removed
+                continue;
+
+            int dist = umiDist(umi, o);
+
+            if(dist <= k && (dist == 0 || f <= maxFreq))
+                res.add(o);
+        }
+    }
+
+    @Override
+    public boolean contains(BitSet umi){
+        return umiFreq.containsKey(umi);
+    }
+
+    @Override
+    public Map<String, Float> stats(){
+        Map<String, Float> res = new HashMap<>();
+        res.put("number of keys", (float)buckets.size());
+        return res;
+    }
+}
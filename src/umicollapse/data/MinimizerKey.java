@@ -0,0 +1,66 @@
+package umicollapse.data;
+
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+
+import static umicollapse.util.Utils.charGet;
+
+// the k-mer of a sequence with the smallest hash (its minimizer)
+// a mismatch can change the minimizer, so similar sequences may have different keys
+public class MinimizerKey implements ReadKey{
+    private static final int MAX_KMER = 64 / Read.ENCODING_LENGTH;
+
+    private int kmer;
+
+    public MinimizerKey(int kmer){
+        if(kmer < 1 || kmer > MAX_KMER)
+            throw new IllegalArgumentException("The minimizer length must be between 1 and " + MAX_KMER + "!");
+
+        this.kmer = kmer;
+    }
+
+    @Override
+    public BitSet apply(BitSet seq, int length){
+        int len = length(length);
+        long mask = (1L << (len * Read.ENCODING_LENGTH)) - 1L;
+        long curr = 0L;
+        long minHash = Long.MAX_VALUE;
+        int minIdx = 0;
+
+        for(int i = 0; i < length; i++){
+            // the encoding of the k-mer ending at i, with its first nucleotide in the lowest bits
+            curr = (curr >>> Read.ENCODING_LENGTH) | ((long)charGet(seq, i) << ((len - 1) * Read.ENCODING_LENGTH));
+
+            if(i >= len - 1){
+                long hash = hash(curr & mask);
+
+                if(hash < minHash){
+                    minHash = hash;
+                    minIdx = i - len + 1;
+                }
+            }
+        }
+
+        return seq.range(minIdx * Read.ENCODING_LENGTH, len * Read.ENCODING_LENGTH);
+    }
+
+    @Override
+    public int length(int length){
+        return Math.min(kmer, length);
+    }
+
+    @Override
+    public boolean isExact(){
+        return false;
+    }
+
+    // 64-bit finalizer from MurmurHash3, so minimizers are not biased towards any nucleotide
+    private static long hash(long x){
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb93fe53a87ceL;
+        x ^= x >>> 33;
+        return x;
+    }
+}
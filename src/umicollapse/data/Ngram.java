@@ -9,11 +9,12 @@ import umicollapse.util.BitSet;
 import static umicollapse.util.Utils.charGet;
 import static umicollapse.util.Utils.HASH_CONST;
 import static umicollapse.util.Utils.umiDist;
+import static umicollapse.util.UmiFreqMap.getFreq;
 
 public class Ngram implements DataStructure{
-    private Map<BitSet, Integer> umiFreq;
-    private int umiLength, ngramSize, maxEdits;
-    private Map<Interval, Set<BitSet>> m;
+    protected Map<BitSet, Integer> umiFreq;
+    protected int umiLength, ngramSize, maxEdits;
+    protected Map<Interval, Set<BitSet>> m;
 
     @Override
     public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
@@ -38,10 +39,12 @@ public class Ngram implements DataStructure{
 
             if(m.containsKey(in)){
                 for(BitSet s : m.get(in)){
-                    if(umiFreq.containsKey(s)){
+                    int freq = getFreq(umiFreq, s);
+
+                    if(freq >= 0){
                         int dist = umiDist(umi, s);
 
-                        if(dist <= k && (dist == 0 || umiFreq.get(s) <= maxFreq)){
+                        if(dist <= k && (dist == 0 || freq <= maxFreq)){
                             res.add(s);
                             umiFreq.remove(s);
                         }
@@ -90,7 +93,7 @@ public class Ngram implements DataStructure{
         return res;
     }
 
-    private static class Interval implements Comparable{
+    protected static class Interval implements Comparable{
         private BitSet s;
         private int lo, hi, hash;
 
@@ -12,8 +12,8 @@ import static umicollapse.util.Utils.umiDist;
 
 public class NgramBKTree implements DataStructure{
     private Map<BitSet, Integer> umiFreq;
-    private int umiLength, ngramSize, maxEdits;
-    private Map<Interval, Node> m;
+    protected int umiLength, ngramSize, maxEdits;
+    protected Map<Interval, Node> m;
 
     @Override
     public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
@@ -116,7 +116,7 @@ public class NgramBKTree implements DataStructure{
         return res;
     }
 
-    private static class Node{
+    protected static class Node{
         private BitSet umi;
         private boolean subtreeExists;
         private Node[] c;
@@ -187,7 +187,7 @@ public class NgramBKTree implements DataStructure{
         }
     }
 
-    private static class Interval implements Comparable{
+    protected static class Interval implements Comparable{
         private BitSet s;
         private int lo, hi, hash;
 
@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 
 import umicollapse.util.BitSet;
 import static umicollapse.util.Utils.umiDist;
@@ -69,7 +70,8 @@ public class ParallelBKTree implements ParallelDataStructure{
             int lo = Math.max(dist - k, 0);
             int hi = Math.min(dist + k, umiLength);
 
-            if(forkJoinEnabled) {
+            // only forks when already running on the pool of the run, never onto the common pool
+            if(forkJoinEnabled && ForkJoinTask.inForkJoinPool()) {
                 // 采用ForkJoin（parallelStream）方式并行遍历符合条件的子节点
                 int childCount = umiLength + 1;
                 List<Integer> indices = new ArrayList<>();
@@ -0,0 +1,41 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+import static umicollapse.util.Utils.charSet;
+import static umicollapse.util.Utils.charEquals;
+import static umicollapse.util.UmiFreqMap.getFreq;
+
+// same as Combo, but queried without removing anything, so queries can run in parallel
+public class ParallelCombo extends Combo implements ParallelDataStructure{
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+        recursiveNear(umi, 0, k, maxFreq, new BitSet(umiLength * Read.ENCODING_LENGTH), res, k);
+        return res;
+    }
+
+    private void recursiveNear(BitSet umi, int idx, int k, int maxFreq, BitSet curr, Set<BitSet> res, int K){
+        if(k < 0)
+            return;
+
+        if(idx >= umiLength){
+            int freq = getFreq(umiFreq, curr);
+
+            if(freq >= 0 && (k == K || freq <= maxFreq))
+                res.add(curr.clone());
+
+            return;
+        }
+
+        for(int c : Read.ENCODING_IDX.keySet()){
+            if(charEquals(umi, idx, c))
+                recursiveNear(umi, idx + 1, k, maxFreq, charSet(curr, idx, c), res, K);
+            else
+                recursiveNear(umi, idx + 1, k - 1, maxFreq, charSet(curr, idx, c), res, K);
+        }
+    }
+}
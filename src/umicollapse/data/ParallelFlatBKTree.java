@@ -0,0 +1,38 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+
+import umicollapse.util.BitSet;
+import static umicollapse.util.Utils.umiDist;
+
+// same flat BK-tree as FlatBKTree, but queried without removing anything, so queries can run in parallel
+public class ParallelFlatBKTree extends FlatBKTree implements ParallelDataStructure{
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+        res.add(umi); // always include queried UMI
+
+        if(umis.length > 0)
+            recursiveNear(umi, 0, k, maxFreq, res);
+
+        return res;
+    }
+
+    private void recursiveNear(BitSet umi, int curr, int k, int maxFreq, Set<BitSet> res){
+        int d = umiDist(umi, umis[curr]);
+
+        if(d <= k && freq[curr] <= maxFreq)
+            res.add(umis[curr]);
+
+        int lo = Math.max(d - k, 0);
+        int hi = Math.min(d + k, umiLength);
+        int end = childStart[curr] + childCount[curr];
+
+        // children are sorted by distance
+        for(int c = childStart[curr]; c < end && dist[c] <= hi; c++){
+            if(dist[c] >= lo && minFreq[c] <= maxFreq)
+                recursiveNear(umi, c, k, maxFreq, res);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+
+import umicollapse.util.BitSet;
+import static umicollapse.util.Utils.umiDist;
+import static umicollapse.util.UmiFreqMap.getFreq;
+
+// same n-gram index as Ngram, but queried without removing anything, so queries can run in parallel
+public class ParallelNgram extends Ngram implements ParallelDataStructure{
+    // k <= maxEdits must be satisfied
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+
+        for(int i = 0; i < maxEdits + 1; i++){
+            Set<BitSet> bin = m.get(new Interval(umi, i * ngramSize, i == maxEdits ? (umiLength - 1) : ((i + 1) * ngramSize - 1)));
+
+            if(bin == null)
+                continue;
+
+            for(BitSet s : bin){
+                int dist = umiDist(umi, s);
+
+                if(dist <= k && (dist == 0 || getFreq(umiFreq, s) <= maxFreq))
+                    res.add(s);
+            }
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,43 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+
+import umicollapse.util.BitSet;
+import static umicollapse.util.Utils.umiDist;
+
+// same n-gram BK-trees as NgramBKTree, but queried without removing anything, so queries can run in parallel
+public class ParallelNgramBKTree extends NgramBKTree implements ParallelDataStructure{
+    // k <= maxEdits must be satisfied
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+        res.add(umi); // always include queried UMI
+
+        for(int i = 0; i < maxEdits + 1; i++){
+            Node curr = m.get(new Interval(umi, i * ngramSize, i == maxEdits ? (umiLength - 1) : ((i + 1) * ngramSize - 1)));
+
+            if(curr != null)
+                recursiveNear(umi, curr, k, maxFreq, res);
+        }
+
+        return res;
+    }
+
+    private void recursiveNear(BitSet umi, Node curr, int k, int maxFreq, Set<BitSet> res){
+        int dist = umiDist(umi, curr.getUMI());
+
+        if(dist <= k && curr.getFreq() <= maxFreq)
+            res.add(curr.getUMI());
+
+        if(curr.hasNodes()){
+            int lo = Math.max(dist - k, 0);
+            int hi = Math.min(dist + k, curr.getNodeCount() - 1);
+
+            for(int i = lo; i <= hi; i++){
+                if(curr.hasNode(i) && curr.minFreq(i) <= maxFreq)
+                    recursiveNear(umi, curr.get(i), k, maxFreq, res);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+import static umicollapse.util.Utils.charGet;
+import static umicollapse.util.Utils.charSet;
+import static umicollapse.util.Utils.umiDist;
+import static umicollapse.util.UmiFreqMap.getFreq;
+
+// same deletion index as SymmetricDelete, but queried without removing anything, so queries can run in parallel
+public class ParallelSymmetricDelete extends SymmetricDelete implements ParallelDataStructure{
+    // k <= maxEdits must be satisfied
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        BitSet b = new BitSet(umiLength * Read.ENCODING_LENGTH);
+        Set<BitSet> res = new HashSet<>();
+
+        for(int i = 0; i <= maxEdits; i++){
+            recursiveNear(umi, i, maxEdits - i, k, maxFreq, b, res);
+
+            if(i < umiLength)
+                charSet(b, i, Read.ANY);
+        }
+
+        return res;
+    }
+
+    private void recursiveNear(BitSet umi, int idx, int k, int maxK, int maxFreq, BitSet curr, Set<BitSet> res){
+        if(idx > umiLength)
+            return;
+
+        if(idx == umiLength){
+            if(k > 0)
+                return;
+
+            Set<BitSet> bin = m.get(curr);
+
+            if(bin != null){
+                for(BitSet val : bin){
+                    int dist = maxK == maxEdits ? -1 : umiDist(umi, val); // every UMI in the bin is within maxEdits
+
+                    if(dist <= maxK && (umi.equals(val) || getFreq(umiFreq, val) <= maxFreq))
+                        res.add(val);
+                }
+            }
+
+            return;
+        }
+
+        charSet(curr, idx, charGet(umi, idx));
+
+        for(int i = 0; i <= k; i++){
+            recursiveNear(umi, idx + 1 + i, k - i, maxK, maxFreq, curr, res);
+
+            if(idx + 1 + i < umiLength)
+                charSet(curr, idx + 1 + i, Read.ANY);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package umicollapse.data;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+import static umicollapse.util.Utils.charSet;
+import static umicollapse.util.Utils.charEquals;
+
+// same trie as Trie, but queried without removing anything, so queries can run in parallel
+public class ParallelTrie extends Trie implements ParallelDataStructure{
+    @Override
+    public Set<BitSet> near(BitSet umi, int k, int maxFreq){
+        Set<BitSet> res = new HashSet<>();
+        res.add(umi); // always include queried UMI
+        recursiveNear(umi, 0, root, k, maxFreq, new BitSet(umiLength * Read.ENCODING_LENGTH), res);
+        return res;
+    }
+
+    private void recursiveNear(BitSet umi, int idx, Node currNode, int k, int maxFreq, BitSet currStr, Set<BitSet> res){
+        if(k < 0)
+            return;
+
+        if(idx >= umiLength){
+            res.add(currStr.clone());
+            return;
+        }
+
+        for(Map.Entry<Integer, Integer> e : Read.ENCODING_IDX.entrySet()){
+            int c = e.getKey();
+            int i = e.getValue();
+
+            if(currNode.hasNode(i) && currNode.getFreq(i) <= maxFreq){
+                if(charEquals(umi, idx, c))
+                    recursiveNear(umi, idx + 1, currNode.get(i), k, maxFreq, charSet(currStr, idx, c), res);
+                else
+                    recursiveNear(umi, idx + 1, currNode.get(i), k - 1, maxFreq, charSet(currStr, idx, c), res);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package umicollapse.data;
+
+import umicollapse.util.BitSet;
+import umicollapse.util.Read;
+
+// the first nucleotides of a sequence, like the UMI and the first bases of the read
+public class PrefixKey implements ReadKey{
+    private int prefix;
+
+    public PrefixKey(int prefix){
+        this.prefix = prefix;
+    }
+
+    @Override
+    public BitSet apply(BitSet seq, int length){
+        return seq.range(0, length(length) * Read.ENCODING_LENGTH);
+    }
+
+    @Override
+    public int length(int length){
+        return Math.min(prefix, length);
+    }
+
+    // every mismatch in the prefix is also a mismatch in the whole sequence
+    @Override
+    public boolean isExact(){
+        return true;
+    }
+}
@@ -0,0 +1,13 @@
+package umicollapse.data;
+
+import umicollapse.util.BitSet;
+
+// a shorter key for a whole read sequence, which is indexed instead of the sequence (see KeyedDataStructure)
+public interface ReadKey{
+    public BitSet apply(BitSet seq, int length);
+    // number of nucleotides of the key of a sequence with the given length
+    public int length(int length);
+    // exact keys are never further apart than their sequences, so searching the keys within k finds every sequence within k
+    // other keys only find sequences with the same key
+    public boolean isExact();
+}
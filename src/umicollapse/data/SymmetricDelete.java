@@ -10,11 +10,12 @@ import umicollapse.util.Read;
 import static umicollapse.util.Utils.charGet;
 import static umicollapse.util.Utils.charSet;
 import static umicollapse.util.Utils.umiDist;
+import static umicollapse.util.UmiFreqMap.getFreq;
 
 public class SymmetricDelete implements DataStructure{
-    private Map<BitSet, Integer> umiFreq;
-    private int umiLength, maxEdits;
-    private Map<BitSet, Set<BitSet>> m;
+    protected Map<BitSet, Integer> umiFreq;
+    protected int umiLength, maxEdits;
+    protected Map<BitSet, Set<BitSet>> m;
 
     @Override
     public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
@@ -54,16 +55,18 @@ public class SymmetricDelete implements DataStructure{
 
             if(m.containsKey(curr)){
                 for(BitSet val : m.get(curr)){
-                    if(umiFreq.containsKey(val)){
+                    int freq = getFreq(umiFreq, val);
+
+                    if(freq >= 0){
                         if(maxK == maxEdits){
-                            if(umiFreq.get(val) <= maxFreq || umi.equals(val)){
+                            if(freq <= maxFreq || umi.equals(val)){
                                 res.add(val);
                                 umiFreq.remove(val);
                             }
                         }else{
                             int dist = umiDist(umi, val);
 
-                            if(dist <= maxK && (dist == 0 || umiFreq.get(val) <= maxFreq)){
+                            if(dist <= maxK && (dist == 0 || freq <= maxFreq)){
                                 res.add(val);
                                 umiFreq.remove(val);
                             }
@@ -7,17 +7,19 @@ import java.util.HashMap;
 
 import umicollapse.util.BitSet;
 import umicollapse.util.Read;
+import umicollapse.util.Metrics;
 import static umicollapse.util.Utils.charGet;
 import static umicollapse.util.Utils.charSet;
 import static umicollapse.util.Utils.charEquals;
 
 public class Trie implements DataStructure{
     private Set<BitSet> s;
-    private int umiLength;
-    private Node root;
+    protected int umiLength;
+    protected Node root;
 
     @Override
     public void init(Map<BitSet, Integer> umiFreq, int umiLength, int maxEdits){
+        Metrics.distUncounted(); // UMIs are matched one character at a time
         this.s = umiFreq.keySet();
         this.umiLength = umiLength;
 
@@ -109,7 +111,7 @@ public class Trie implements DataStructure{
         return count;
     }
 
-    private static class Node{
+    protected static class Node{
         private Node[] c;
         private boolean exists;
         private int freq;
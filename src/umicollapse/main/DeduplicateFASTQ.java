@@ -1,17 +1,26 @@
 package umicollapse.main;
 
+import htsjdk.samtools.fastq.BasicFastqWriter;
 import htsjdk.samtools.fastq.FastqRecord;
-import htsjdk.samtools.fastq.FastqReader;
 import htsjdk.samtools.fastq.FastqWriter;
 import htsjdk.samtools.fastq.FastqWriterFactory;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.RuntimeIOException;
 
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
+import java.util.ArrayList;
 
 import java.util.stream.Stream;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.io.OutputStream;
+import java.io.IOException;
 
 import umicollapse.util.BitSet;
 import umicollapse.algo.*;
@@ -19,13 +28,45 @@ import umicollapse.data.*;
 import umicollapse.merge.*;
 import umicollapse.util.Read;
 import umicollapse.util.FASTQRead;
+import umicollapse.util.PairedFASTQRead;
 import umicollapse.util.ReadFreq;
+import umicollapse.util.UmiReadMap;
 import umicollapse.util.ClusterTracker;
+import umicollapse.util.ThreadPools;
+import umicollapse.util.Metrics;
+import umicollapse.util.ParallelFastqReader;
+import umicollapse.util.ParallelBGZFOutputStream;
 
 public class DeduplicateFASTQ{
+    // number of parsed chunks of the input per thread that can be waiting to be grouped
+    private static final int READ_CHUNKS_PER_THREAD = 2;
+    private static final int IO_QUEUE_SIZE = 64;
+
     private int uniqueCount;
     private int dedupedCount;
     private int umiLength;
+    private int threads = 1;
+    private int ioThreads = 0;
+    private int readCount;
+    private ReadKey readKey = null;
+    private Class<? extends Data> keyIndexClass = null;
+
+    // number of threads that deduplicate reads of different lengths or parallelize the deduplication within a length (-t or -T)
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    // number of threads for inflating BGZF input and deflating BGZF output (--io-threads)
+    public void setIOThreads(int ioThreads){
+        this.ioThreads = ioThreads;
+    }
+
+    // index a shorter key of each read instead of the whole read (--key-prefix or --key-minimizer)
+    // the keys are indexed with the parallel version of the data structure, since the index is never changed
+    public void setReadKey(ReadKey readKey, Class<? extends Data> keyIndexClass){
+        this.readKey = readKey;
+        this.keyIndexClass = keyIndexClass;
+    }
 
     public void deduplicateAndMerge(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, boolean parallel, boolean trackClusters){
         umiLength = umiLengthParam;
@@ -33,134 +74,336 @@ public class DeduplicateFASTQ{
         if(umiLength == -1)
             umiLength = 0;
 
-        FastqReader reader = new FastqReader(in);
         Map<Integer, Map<BitSet, ReadFreq>> readLength = new HashMap<>(1 << 16);
+        // all reads are retained when tracking clusters, so they can be tagged without reading the input again
+        Map<Integer, Map<BitSet, List<Member>>> members = trackClusters ? new HashMap<>(1 << 16) : null;
+        ThreadPools pools = new ThreadPools(threads, ioThreads);
+        FastqWriter writer = null;
 
-        int readCount = 0;
-
-        for(FastqRecord record : reader){
-            int length = record.getReadLength();
+        try{
+            readCount = 0;
+            readInput(in, readLength, members, merge, pools);
 
-            if(!readLength.containsKey(length))
-                readLength.put(length, new HashMap<BitSet, ReadFreq>(4));
+            System.gc(); // attempt to clear up memory before deduplicating
 
-            Map<BitSet, ReadFreq> umiRead = readLength.get(length);
+            System.out.println("Done reading input file into memory!");
+            Metrics.phase("read");
 
-            Read read = new FASTQRead(record.getReadName(), record.getReadString(), record.getBaseQualityString());
-            BitSet umi = read.getUMI(-1);
+            uniqueCount = 0;
+            dedupedCount = 0;
+            writer = newWriter(out, pools);
 
-            if(umiRead.containsKey(umi)){
-                ReadFreq prev = umiRead.get(umi);
-                prev.read = merge.merge(read, prev.read);
-                prev.freq++;
-            }else{
-                umiRead.put(umi, new ReadFreq(read, 1));
-            }
+            deduplicateLengths(readLength, members, writer, null, algo, dataClass, k, percentage, parallel, pools);
 
-            readCount++;
+            writer.close(); // the last blocks are still compressed on the I/O pool
+        }finally{
+            closeQuietly(writer);
+            pools.shutdownNow();
         }
 
-        reader.close();
+        printStats(trackClusters);
+    }
 
-        reader = null;
+    // each read is spilled into a temporary FASTQ partition while the input is read, and then each partition is
+    // mapped and deduplicated separately, so only the largest partition has to fit in memory
+    // reads are split by a hash of their whole sequence, so this only works for exact duplicates (k = 0)
+    // with k above 0, no split of the reads can keep every group together, since groups can chain reads that have
+    // nothing in common (like reads that share a different segment of the sequence with a read in between)
+    public void deduplicateAndMergeExactPartitioned(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, boolean parallel, boolean trackClusters, int numPartitions){
+        if(k > 0)
+            throw new UnsupportedOperationException("Cannot split FASTQ files into exact partitions with -k above 0, since similar reads could end up in different partitions!");
 
-        System.gc(); // attempt to clear up memory before deduplicating
+        umiLength = umiLengthParam;
 
-        System.out.println("Done reading input file into memory!");
+        if(umiLength == -1)
+            umiLength = 0;
 
-        uniqueCount = 0;
-        dedupedCount = 0;
-        FastqWriter writer = new FastqWriterFactory().newWriter(out);
-        Object lock = new Object();
+        ThreadPools pools = new ThreadPools(threads, ioThreads);
+        File[] partitions = new File[numPartitions];
+        OutputStream[] partitionOut = new OutputStream[numPartitions];
+        FastqWriter writer = null;
 
-        final Map<Integer, ClusterTracker> clusterTrackers = trackClusters ? new HashMap<Integer, ClusterTracker>() : null;
+        try{
+            try{
+                for(int i = 0; i < numPartitions; i++){
+                    partitions[i] = File.createTempFile("umicollapse_partition", ".fastq");
+                    partitions[i].deleteOnExit();
+                    partitionOut[i] = new BufferedOutputStream(new FileOutputStream(partitions[i]), 1 << 16);
+                }
 
-        Stream<Map.Entry<Integer, Map<BitSet, ReadFreq>>> stream = parallel ?
-            readLength.entrySet().parallelStream() : readLength.entrySet().stream();
+                new ParallelFastqReader(in, pools.getIOPool(), IO_QUEUE_SIZE).read(threads > 1 ? pools.getComputePool() : null, READ_CHUNKS_PER_THREAD * threads, records -> {
+                    try{
+                        for(ParallelFastqReader.Record record : records){
+                            int length = record.getReadLength();
+                            int hash = 31 * length + record.getSeqHash();
+                            record.write(partitionOut[Math.floorMod(hash, numPartitions)]);
+                        }
+                    }catch(IOException e){
+                        throw new RuntimeIOException(e);
+                    }
+                });
+
+                for(int i = 0; i < numPartitions; i++)
+                    partitionOut[i].close();
+            }catch(IOException e){
+                throw new RuntimeIOException(e);
+            }
 
-        stream.forEach(e -> {
-            List<Read> deduped;
-            Data data = null;
+            System.out.println("Done splitting input file into partitions!");
+            Metrics.phase("partition");
 
-            try{
-                data = dataClass.getDeclaredConstructor().newInstance();
-            }catch(Exception ex){
-                ex.printStackTrace();
+            readCount = 0;
+            uniqueCount = 0;
+            dedupedCount = 0;
+            writer = newWriter(out, pools);
+
+            for(int i = 0; i < numPartitions; i++){
+                Map<Integer, Map<BitSet, ReadFreq>> readLength = new HashMap<>(1 << 16);
+                Map<Integer, Map<BitSet, List<Member>>> members = trackClusters ? new HashMap<>(1 << 16) : null;
+
+                readInput(partitions[i], readLength, members, merge, pools);
+                deduplicateLengths(readLength, members, writer, null, algo, dataClass, k, percentage, parallel, pools);
+                partitions[i].delete();
             }
 
-            ClusterTracker currTracker = new ClusterTracker(trackClusters);
+            writer.close();
+        }finally{
+            // the partitions that are left were abandoned by a failure
+            for(int i = 0; i < numPartitions; i++){
+                closeQuietly(partitionOut[i]);
 
-            if(algo instanceof Algorithm)
-                deduped = ((Algorithm)algo).apply(e.getValue(), ((DataStructure)data), currTracker, e.getKey(), k, percentage);
-            else
-                deduped = ((ParallelAlgorithm)algo).apply(e.getValue(), ((ParallelDataStructure)data), currTracker, e.getKey(), k, percentage);
+                if(partitions[i] != null)
+                    partitions[i].delete();
+            }
+
+            closeQuietly(writer);
+            pools.shutdownNow();
+        }
+
+        printStats(trackClusters);
+    }
 
-            synchronized(lock){
-                currTracker.setOffset(dedupedCount);
+    // the mates of paired-end reads are read from two files in lockstep, and both mates are written to two files
+    // the first bases (readPrefix, which includes the UMI) of the first mate and the first bases (matePrefix) of the
+    // second mate are deduplicated together
+    public void deduplicateAndMergePaired(File in, File mateIn, File out, File mateOut, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, boolean parallel, boolean trackClusters, int readPrefix, int matePrefix){
+        umiLength = umiLengthParam;
 
-                uniqueCount += e.getValue().size();
-                dedupedCount += deduped.size();
+        if(umiLength == -1)
+            umiLength = 0;
 
-                if(trackClusters){
-                    clusterTrackers.put(e.getKey(), currTracker);
-                }else{
-                    for(Read read : deduped)
-                        writer.write(((FASTQRead)read).toFASTQRecord(e.getKey(), umiLength));
+        Map<Integer, Map<BitSet, ReadFreq>> readLength = new HashMap<>(1 << 16);
+        Map<Integer, Map<BitSet, List<Member>>> members = trackClusters ? new HashMap<>(1 << 16) : null;
+        ThreadPools pools = new ThreadPools(threads, ioThreads);
+        FastqWriter writer = null, mateWriter = null;
+
+        try{
+            readCount = 0;
+
+            ParallelFastqReader.readPaired(new ParallelFastqReader(in, pools.getIOPool(), IO_QUEUE_SIZE), new ParallelFastqReader(mateIn, pools.getIOPool(), IO_QUEUE_SIZE),
+                threads > 1 ? pools.getComputePool() : null, READ_CHUNKS_PER_THREAD * threads, (first, second) -> {
+                    PairedFASTQRead read = new PairedFASTQRead(first, second, readPrefix, matePrefix);
+                    Member member = trackClusters ? new Member(first.toFastqRecord(), second.toFastqRecord(), read) : null;
+                    addRead(readLength, members, PairedFASTQRead.keyLength(first, second, readPrefix, matePrefix), read, member, merge);
+                });
+
+            System.gc(); // attempt to clear up memory before deduplicating
+
+            System.out.println("Done reading input files into memory!");
+            Metrics.phase("read");
+
+            uniqueCount = 0;
+            dedupedCount = 0;
+            writer = newWriter(out, pools);
+            mateWriter = newWriter(mateOut, pools);
+
+            deduplicateLengths(readLength, members, writer, mateWriter, algo, dataClass, k, percentage, parallel, pools);
+
+            writer.close();
+            mateWriter.close();
+        }finally{
+            closeQuietly(writer);
+            closeQuietly(mateWriter);
+            pools.shutdownNow();
+        }
+
+        printStats(trackClusters);
+    }
+
+    // chunks of the file are parsed in parallel, but the reads are grouped in the same order as the file
+    private void readInput(File in, Map<Integer, Map<BitSet, ReadFreq>> readLength, Map<Integer, Map<BitSet, List<Member>>> members, Merge merge, ThreadPools pools){
+        new ParallelFastqReader(in, pools.getIOPool(), IO_QUEUE_SIZE).read(threads > 1 ? pools.getComputePool() : null, READ_CHUNKS_PER_THREAD * threads, records -> {
+            for(ParallelFastqReader.Record record : records)
+                addRead(readLength, members, record.getReadLength(), record.getRead(), members != null ? new Member(record.toFastqRecord(), null, record.getRead()) : null, merge);
+        });
+    }
+
+    // the mate writer is null for single-end reads
+    private void deduplicateLengths(Map<Integer, Map<BitSet, ReadFreq>> readLength, Map<Integer, Map<BitSet, List<Member>>> members, FastqWriter writer, FastqWriter mateWriter, Algo algo, Class<? extends Data> dataClass, int k, float percentage, boolean parallel, ThreadPools pools){
+        boolean trackClusters = members != null;
+        Object lock = new Object();
+
+        // the parallel stream runs on the compute pool, so the parallel algorithms fork onto the same threads
+        pools.execute(() -> {
+            Stream<Map.Entry<Integer, Map<BitSet, ReadFreq>>> stream = parallel ?
+                readLength.entrySet().parallelStream() : readLength.entrySet().stream();
+
+            stream.forEach(e -> {
+                List<Read> deduped;
+                Data data = null;
+
+                try{
+                    if(readKey != null)
+                        data = new KeyedDataStructure((ParallelDataStructure)keyIndexClass.getDeclaredConstructor().newInstance(), readKey);
+                    else
+                        data = dataClass.getDeclaredConstructor().newInstance();
+                }catch(Exception ex){
+                    ex.printStackTrace();
                 }
-            }
+
+                ClusterTracker currTracker = new ClusterTracker(trackClusters);
+                Metrics.recordUMICount(e.getValue().size());
+
+                if(algo instanceof Algorithm)
+                    deduped = ((Algorithm)algo).apply(e.getValue(), ((DataStructure)data), currTracker, e.getKey(), k, percentage);
+                else
+                    deduped = ((ParallelAlgorithm)algo).apply(e.getValue(), ((ParallelDataStructure)data), currTracker, e.getKey(), k, percentage);
+
+                synchronized(lock){
+                    currTracker.setOffset(dedupedCount);
+
+                    uniqueCount += e.getValue().size();
+                    dedupedCount += deduped.size();
+
+                    if(trackClusters){
+                        writeTagged(writer, mateWriter, e.getValue(), members.get(e.getKey()), currTracker);
+                    }else if(mateWriter != null){
+                        for(Read read : deduped){
+                            writer.write(((PairedFASTQRead)read).toFirstFASTQRecord(umiLength));
+                            mateWriter.write(((PairedFASTQRead)read).toSecondFASTQRecord());
+                        }
+                    }else{
+                        for(Read read : deduped)
+                            writer.write(((FASTQRead)read).toFASTQRecord(e.getKey(), umiLength));
+                    }
+                }
+            });
         });
+    }
 
-        // second pass to tag reads with their cluster and other stats
-        if(trackClusters){
-            System.gc(); // attempt to clear up memory before second pass
+    private void printStats(boolean trackClusters){
+        Metrics.setInputReads(readCount);
+        System.out.println("Number of input reads\t" + readCount);
+        System.out.println("Number of unique reads\t" + uniqueCount);
 
-            System.out.println("Done with the first pass for tracking clusters!");
+        if(trackClusters)
+            System.out.println("Number of groups of reads\t" + dedupedCount);
+        else
+            System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+    }
 
-            FastqReader reader2 = new FastqReader(in);
+    // .gz output is written as BGZF blocks that are compressed on the I/O pool, if there is one
+    // otherwise, htsjdk compresses it on the calling thread
+    // the writers are closed before the pools are stopped, since they may still be compressing blocks on the I/O pool
+    // closing them again after they were closed does nothing
+    private static void closeQuietly(Closeable c){
+        if(c == null)
+            return;
+
+        try{
+            c.close();
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    private static FastqWriter newWriter(File out, ThreadPools pools){
+        if(pools.getIOPool() == null || !out.getName().endsWith(".gz"))
+            return new FastqWriterFactory().newWriter(out);
 
-            for(FastqRecord record : reader2){
-                int length = record.getReadLength();
+        try{
+            return new BasicFastqWriter(new PrintStream(new ParallelBGZFOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 20),
+                pools.getIOPool(), BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL, IO_QUEUE_SIZE)));
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private void addRead(Map<Integer, Map<BitSet, ReadFreq>> readLength, Map<Integer, Map<BitSet, List<Member>>> members, int length, Read read, Member member, Merge merge){
+        if(!readLength.containsKey(length))
+            readLength.put(length, new UmiReadMap());
+
+        Map<BitSet, ReadFreq> umiRead = readLength.get(length);
+        BitSet umi = read.getUMI(-1);
+
+        if(umiRead.containsKey(umi)){
+            ReadFreq prev = umiRead.get(umi);
+            prev.read = merge.merge(read, prev.read);
+            prev.freq++;
+        }else{
+            umiRead.put(umi, new ReadFreq(read, 1));
+        }
 
-                ClusterTracker currTracker = clusterTrackers.get(length);
-                Map<BitSet, ReadFreq> map = readLength.get(length);
+        if(members != null){
+            if(!members.containsKey(length))
+                members.put(length, new HashMap<BitSet, List<Member>>(4));
 
-                Read read = new FASTQRead(record.getReadName(), record.getReadString(), record.getBaseQualityString());
-                BitSet umi = read.getUMI(-1);
+            Map<BitSet, List<Member>> umiMembers = members.get(length);
 
-                int id = currTracker.getId(umi);
-                ClusterTracker.ClusterStats stats = currTracker.getStats(id);
-                int absId = id + currTracker.getOffset();
-                StringBuffer b = new StringBuffer(record.getReadName());
-                ReadFreq readFreq = map.get(umi);
+            if(!umiMembers.containsKey(umi))
+                umiMembers.put(umi, new ArrayList<Member>());
+
+            umiMembers.get(umi).add(member);
+        }
+
+        readCount++;
+    }
+
+    // tag the retained reads of a group with their cluster and other stats
+    private void writeTagged(FastqWriter writer, FastqWriter mateWriter, Map<BitSet, ReadFreq> umiRead, Map<BitSet, List<Member>> members, ClusterTracker tracker){
+        for(Map.Entry<BitSet, List<Member>> e : members.entrySet()){
+            BitSet umi = e.getKey();
+            int id = tracker.getId(umi);
+            ClusterTracker.ClusterStats stats = tracker.getStats(id);
+            int absId = id + tracker.getOffset();
+            ReadFreq readFreq = umiRead.get(umi);
+
+            for(Member m : e.getValue()){
+                FastqRecord record = m.record;
+                StringBuffer b = new StringBuffer();
 
                 b.append(" cluster_id=");
                 b.append(absId);
 
-                if(stats.getUMI().equals(umi) && stats.getRead().equals(read)){
+                if(m.read == stats.getRead()){
                     b.append(" cluster_size=");
                     b.append(stats.getFreq());
                     b.append(" same_umi=");
                     b.append(readFreq.freq);
-                }else if(readFreq.read.equals(read)){
+                }else if(m.read == readFreq.read){
                     b.append(" same_umi=");
                     b.append(readFreq.freq);
                 }
 
-                FastqRecord record2 = new FastqRecord(b.toString(), record.getReadString().substring(umiLength), record.getBaseQualityHeader(), record.getBaseQualityString().substring(umiLength));
-                writer.write(record2);
-            }
+                writer.write(new FastqRecord(record.getReadName() + b, record.getReadString().substring(umiLength), record.getBaseQualityHeader(), record.getBaseQualityString().substring(umiLength)));
 
-            reader2.close();
+                if(mateWriter != null){ // both mates get the same tags
+                    FastqRecord mate = m.mateRecord;
+                    mateWriter.write(new FastqRecord(mate.getReadName() + b, mate.getReadString(), mate.getBaseQualityHeader(), mate.getBaseQualityString()));
+                }
+            }
         }
+    }
 
-        writer.close();
+    // a read that is retained for tagging, along with the record it was parsed from (and the record of its mate)
+    private static class Member{
+        public FastqRecord record, mateRecord;
+        public Read read;
 
-        System.out.println("Number of input reads\t" + readCount);
-        System.out.println("Number of unique reads\t" + uniqueCount);
-
-        if(trackClusters)
-            System.out.println("Number of groups of reads\t" + dedupedCount);
-        else
-            System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        public Member(FastqRecord record, FastqRecord mateRecord, Read read){
+            this.record = record;
+            this.mateRecord = mateRecord;
+            this.read = read;
+        }
     }
 }
@@ -1,21 +1,37 @@
 package umicollapse.main;
 
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.ValidationStringency;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.AbstractMap;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 import java.io.File;
+import java.io.IOException;
 
 import umicollapse.util.BitSet;
 import umicollapse.data.*;
@@ -24,169 +40,507 @@ import umicollapse.merge.*;
 import umicollapse.util.Read;
 import umicollapse.util.SAMRead;
 import umicollapse.util.ReadFreq;
+import umicollapse.util.UmiReadMap;
 import umicollapse.util.ClusterTracker;
 import umicollapse.util.Utils;
-import static umicollapse.util.Utils.HASH_CONST;
+import umicollapse.util.Alignment;
+import umicollapse.util.ParallelSAMReader;
+import umicollapse.util.ParallelBAMWriter;
+import umicollapse.util.AsyncIterator;
+import umicollapse.util.OrderedWriter;
+import umicollapse.util.MateBuffer;
+import umicollapse.util.ThreadPools;
+import umicollapse.util.RecordPartitions;
+import umicollapse.util.BAMShardMerger;
+import umicollapse.util.Metrics;
 
 public class DeduplicateSAM{
+    // number of blocks that can be decompressed/compressed ahead of the deduplication
+    private static final int IO_QUEUE_SIZE = 64;
+    // batches of parsed reads and closed alignment positions that can be queued between the stages of the streaming pipeline
+    private static final int PIPELINE_BATCH_SIZE = 1024;
+    private static final int PIPELINE_QUEUE_SIZE = 256;
+    // with -t, positions with at least this many UMIs are deduplicated with the parallel algorithm,
+    // and smaller positions are batched until each batch has about this many UMIs
+    private static final int LARGE_POSITION_UMIS = 1 << 14;
+    private static final int BATCH_UMIS = 1 << 12;
+
     private int avgUMICount;
     private int maxUMICount;
     private int dedupedCount;
-    private int umiLength;
+    private volatile int umiLength; // can be autodetected by the parser thread while streaming
+    private int threads = 1;
+    private int ioThreads = 0;
+    private ThreadPools pools = null;
+    private Deque<AutoCloseable> resources = null;
+    private boolean spillMates = false;
+    private ParallelAlgorithm largeAlgo = null;
+    private Class<? extends Data> largeDataClass = null;
+
+    // with -t, large positions are split up over all threads with this algorithm and data structure instead
+    public void setLargePositionAlgo(ParallelAlgorithm largeAlgo, Class<? extends Data> largeDataClass){
+        this.largeAlgo = largeAlgo;
+        this.largeDataClass = largeDataClass;
+    }
+
+    // reversed reads of pairs are kept in a temporary file instead of in memory if this is set
+    public void setSpillMates(boolean spillMates){
+        this.spillMates = spillMates;
+    }
+
+    // number of threads that deduplicate alignment positions or parallelize the deduplication within a position (-t or -T)
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    // BGZF blocks are decompressed and compressed on a separate pool of threads if this is set
+    public void setIOThreads(int ioThreads){
+        this.ioThreads = ioThreads;
+    }
 
     public void deduplicateAndMerge(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, boolean parallel, String umiSeparator, boolean paired, boolean removeUnpaired, boolean removeChimeric, boolean keepUnmapped, boolean trackClusters){
-        SAMRead.setDefaultUMIPattern(umiSeparator);
+        startRun();
 
-        SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
-        Writer writer = new Writer(in, out, reader, paired);
-        Map<Alignment, Map<BitSet, ReadFreq>> align = new HashMap<>(1 << 16);
+        try{
+            SAMRead.setDefaultUMISeparator(umiSeparator);
+
+            ParallelSAMReader reader = new ParallelSAMReader(in, pools.getIOPool(), IO_QUEUE_SIZE);
+
+            closeAtEnd(reader);
+            SAMFileHeader header = reader.getFileHeader();
+            Writer writer = new Writer(out, header, paired, spillMates, pools.getIOPool());
+            closeAtEnd(writer::abort);
+            Map<Alignment, Map<BitSet, ReadFreq>> align = new HashMap<>(1 << 16);
+            // all reads are retained when tracking clusters, so they can be tagged without reading the input again
+            Map<Alignment, Map<BitSet, List<SAMRecord>>> members = trackClusters ? new HashMap<>(1 << 16) : null;
+
+            umiLength = umiLengthParam;
+            int totalReadCount = 0;
+            int unmapped = 0;
+            int unpaired = 0;
+            int chimeric = 0;
+            int readCount = 0;
+
+            for(SAMRecord record : reader){
+                // always skip the reversed read
+                if(paired && record.getReadPairedFlag() && record.getSecondOfPairFlag()){
+                    writer.addMate(record);
+                    continue;
+                }
 
-        umiLength = umiLengthParam;
-        int totalReadCount = 0;
-        int unmapped = 0;
-        int unpaired = 0;
-        int chimeric = 0;
-        int readCount = 0;
+                totalReadCount++;
 
-        for(SAMRecord record : reader){
-            // always skip the reversed read
-            if(paired && record.getReadPairedFlag() && record.getSecondOfPairFlag())
-                continue;
+                if(record.getReadUnmappedFlag()){ // discard unmapped reads
+                    unmapped++;
+                    if(keepUnmapped)
+                        writer.write(record);
+                    continue;
+                }
 
-            totalReadCount++;
+                if(paired){
+                    if(!record.getReadPairedFlag()){
+                        unpaired++;
 
-            if(record.getReadUnmappedFlag()){ // discard unmapped reads
-                unmapped++;
-                if(keepUnmapped)
-                    writer.write(record);
-                continue;
+                        if(removeUnpaired)
+                            continue;
+                    }
+
+                    if(record.getReadPairedFlag() && record.getMateUnmappedFlag()){
+                        unmapped++;
+                        continue;
+                    }
+
+                    if(record.getReadPairedFlag() && !record.getReferenceName().equals(record.getMateReferenceName())){
+                        chimeric++;
+
+                        if(removeChimeric)
+                            continue;
+                    }
+                }
+
+                addRead(align, members, Alignment.fromRecord(record, paired), new SAMRead(record), merge);
+                readCount++;
+            }
+
+            try{
+                reader.close();
+            }catch(Exception e){
+                e.printStackTrace();
             }
 
+            reader = null;
+
+            System.gc(); // attempt to clear up memory before deduplicating
+
+            System.out.println("Done reading input file into memory!");
+            Metrics.phase("read");
+
+            int alignPosCount = align.size();
+            avgUMICount = 0;
+            maxUMICount = 0;
+            dedupedCount = 0;
+
+            deduplicatePositions(align, members, header, writer, algo, dataClass, k, percentage, parallel, paired);
+
+            writer.close();
+
+            Metrics.setInputReads(totalReadCount);
+            System.out.println("Number of input reads\t" + totalReadCount);
+            System.out.println("Number of removed unmapped reads\t" + unmapped);
+
             if(paired){
-                if(!record.getReadPairedFlag()){
-                    unpaired++;
+                System.out.println("Number of unpaired reads\t" + unpaired);
+                System.out.println("Number of chimeric reads\t" + chimeric);
+            }
 
-                    if(removeUnpaired)
-                        continue;
-                }
+            System.out.println("Number of unremoved reads\t" + readCount);
+            System.out.println("Number of unique alignment positions\t" + alignPosCount);
+            System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
+            System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
 
-                if(record.getReadPairedFlag() && record.getMateUnmappedFlag()){
-                    unmapped++;
+            if(trackClusters)
+                System.out.println("Number of groups of reads\t" + dedupedCount);
+            else
+                System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        }finally{
+            finishRun();
+        }
+    }
+
+    // for inputs that are too large to keep every alignment position in memory, but are not sorted
+    // reads are split into temporary partitions by their alignment position while the input is read, and then
+    // each partition is deduplicated on its own, so only the largest partition has to fit in memory
+    // paired reads are split by reference instead, so the reversed reads of a reference can be dropped once it is done
+    public void deduplicateAndMergePartitioned(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, boolean parallel, String umiSeparator, boolean paired, boolean removeUnpaired, boolean removeChimeric, boolean keepUnmapped, boolean trackClusters, int numPartitions){
+        startRun();
+
+        try{
+            SAMRead.setDefaultUMISeparator(umiSeparator);
+
+            ParallelSAMReader reader = new ParallelSAMReader(in, pools.getIOPool(), IO_QUEUE_SIZE);
+
+            closeAtEnd(reader);
+            SAMFileHeader header = reader.getFileHeader();
+            Writer writer = new Writer(out, header, paired, spillMates, pools.getIOPool());
+            closeAtEnd(writer::abort);
+            RecordPartitions partitions = new RecordPartitions(header, numPartitions, paired);
+            closeAtEnd(partitions);
+
+            umiLength = umiLengthParam;
+            ReadCounts counts = new ReadCounts();
+            Iterator<ParsedRead> parsed = new Parser(reader.iterator(), writer, counts, paired, removeUnpaired, removeChimeric, keepUnmapped);
+
+            while(parsed.hasNext()){
+                ParsedRead p = parsed.next();
+
+                if(p.alignment == null){ // kept unmapped read
+                    writer.write(p.record);
                     continue;
                 }
 
-                if(record.getReadPairedFlag() && !record.getReferenceName().equals(record.getMateReferenceName())){
-                    chimeric++;
+                int hash = paired ? p.alignment.getRef().hashCode() : p.alignment.hashCode();
+                partitions.add(Math.floorMod(hash, numPartitions), p.record, p.alignment, p.umi, umiLength, p.read.getAvgQual());
+            }
 
-                    if(removeChimeric)
-                        continue;
-                }
+            try{
+                reader.close();
+            }catch(Exception e){
+                e.printStackTrace();
+            }
+
+            partitions.finish();
+
+            System.out.println("Done splitting input file into partitions!");
+            Metrics.phase("partition");
+
+            int alignPosCount = 0;
+            avgUMICount = 0;
+            maxUMICount = 0;
+            dedupedCount = 0;
+
+            for(int i = 0; i < numPartitions; i++){
+                Map<Alignment, Map<BitSet, ReadFreq>> align = new HashMap<>(1 << 16);
+                Map<Alignment, Map<BitSet, List<SAMRecord>>> members = trackClusters ? new HashMap<>(1 << 16) : null;
+
+                partitions.read(i, (alignment, read) -> addRead(align, members, alignment, read, merge));
+
+                alignPosCount += align.size();
+                deduplicatePositions(align, members, header, writer, algo, dataClass, k, percentage, parallel, paired);
+                partitions.delete(i);
             }
 
-            Alignment alignment = null;
+            writer.close();
+
+            Metrics.setInputReads(counts.total);
+            System.out.println("Number of input reads\t" + counts.total);
+            System.out.println("Number of removed unmapped reads\t" + counts.unmapped);
 
             if(paired){
-                alignment = new PairedAlignment(
-                        record.getReadNegativeStrandFlag(),
-                        record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                        record.getReferenceName(),
-                        record.getInferredInsertSize()
-                );
-            }else{
-                alignment = new Alignment(
-                        record.getReadNegativeStrandFlag(),
-                        record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                        record.getReferenceName()
-                );
+                System.out.println("Number of unpaired reads\t" + counts.unpaired);
+                System.out.println("Number of chimeric reads\t" + counts.chimeric);
             }
 
-            if(!align.containsKey(alignment))
-                align.put(alignment, new HashMap<BitSet, ReadFreq>(4));
+            System.out.println("Number of unremoved reads\t" + counts.kept);
+            System.out.println("Number of unique alignment positions\t" + alignPosCount);
+            System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
+            System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
 
-            Map<BitSet, ReadFreq> umiRead = align.get(alignment);
+            if(trackClusters)
+                System.out.println("Number of groups of reads\t" + dedupedCount);
+            else
+                System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        }finally{
+            finishRun();
+        }
+    }
 
-            Read read = new SAMRead(record);
-            BitSet umi = read.getUMI(umiLength);
+    // for indexed BAM files: the reads of each reference are read through the index and deduplicated on their own
+    // into a temporary BAM fragment, with the references spread over all of the threads (largest first)
+    // the fragments are then concatenated by copying their compressed blocks, without decoding the reads again
+    // only the reads of one reference per thread have to fit in memory
+    public void deduplicateAndMergeByContig(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, String umiSeparator, boolean keepUnmapped){
+        startRun();
 
-            if(umiLength == -1)
-                umiLength = read.getUMILength();
+        try{
+            SAMRead.setDefaultUMISeparator(umiSeparator);
+
+            SamReader headerReader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
+            closeAtEnd(headerReader);
+            SAMFileHeader header = headerReader.getFileHeader();
+
+            if(!headerReader.hasIndex())
+                throw new IllegalArgumentException("The input BAM file must be indexed to deduplicate each reference separately!");
+
+            // the unplaced unmapped reads at the end of the file are one more fragment, so they are counted (or kept)
+            List<SAMSequenceRecord> refs = header.getSequenceDictionary().getSequences();
+            int numFragments = refs.size() + 1;
+            // the fragments are deleted at the end of the run, after they are merged or after a failure
+            List<File> fragments = new ArrayList<>(numFragments);
+            closeAtEnd(() -> {
+                for(File fragment : fragments)
+                    fragment.delete();
+            });
+            DeduplicateSAM[] parts = new DeduplicateSAM[numFragments];
+            ReadCounts[] counts = new ReadCounts[numFragments];
+            int[] alignPosCounts = new int[numFragments];
 
-            if(umiRead.containsKey(umi)){
-                ReadFreq prev = umiRead.get(umi);
-                prev.read = merge.merge(read, prev.read);
-                prev.freq++;
-            }else{
-                umiRead.put(umi, new ReadFreq(read, 1));
+            try{
+                for(int i = 0; i < numFragments; i++){
+                    File fragment = File.createTempFile("umicollapse_fragment", ".bam");
+                    fragment.deleteOnExit();
+                    fragments.add(fragment);
+                }
+            }catch(IOException e){
+                throw new RuntimeIOException(e);
             }
 
-            readCount++;
+            // longest references first, so a long reference is not left for last
+            List<Integer> order = new ArrayList<>(numFragments);
+
+            for(int i = 0; i < numFragments; i++)
+                order.add(i);
+
+            order.sort((a, b) -> Long.compare(b < refs.size() ? refs.get(b).getSequenceLength() : 0L, a < refs.size() ? refs.get(a).getSequenceLength() : 0L));
+
+            AtomicInteger next = new AtomicInteger(0);
+
+            // each fragment has its own counters and UMI length, so fragments do not share any state
+            pools.execute(() -> IntStream.range(0, pools.getComputeThreads()).parallel().forEach(t -> {
+                int i;
+
+                while((i = next.getAndIncrement()) < numFragments){
+                    int idx = order.get(i);
+                    parts[idx] = new DeduplicateSAM();
+                    parts[idx].pools = pools;
+                    counts[idx] = new ReadCounts();
+
+                    try{
+                        alignPosCounts[idx] = parts[idx].deduplicateFragment(in, fragments.get(idx), header, idx < refs.size() ? refs.get(idx).getSequenceName() : null, algo, dataClass, merge, umiLengthParam, k, percentage, keepUnmapped, counts[idx]);
+                    }catch(RuntimeException | Error e){
+                        next.set(numFragments); // the other threads stop taking fragments
+                        throw e;
+                    }
+                }
+            }));
+
+            BAMShardMerger.merge(fragments, out);
+
+            ReadCounts total = new ReadCounts();
+            int alignPosCount = 0;
+            avgUMICount = 0;
+            maxUMICount = 0;
+            dedupedCount = 0;
+
+            for(int i = 0; i < numFragments; i++){
+                total.total += counts[i].total;
+                total.unmapped += counts[i].unmapped;
+                total.kept += counts[i].kept;
+                alignPosCount += alignPosCounts[i];
+                avgUMICount += parts[i].avgUMICount;
+                maxUMICount = Math.max(maxUMICount, parts[i].maxUMICount);
+                dedupedCount += parts[i].dedupedCount;
+            }
+
+            Metrics.setInputReads(total.total);
+            System.out.println("Number of input reads\t" + total.total);
+            System.out.println("Number of removed unmapped reads\t" + total.unmapped);
+            System.out.println("Number of unremoved reads\t" + total.kept);
+            System.out.println("Number of unique alignment positions\t" + alignPosCount);
+            System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
+            System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
+            System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        }finally{
+            finishRun();
+        }
+    }
+
+    // deduplicates the reads of one reference (or the unplaced unmapped reads if ref is null) into a fragment
+    private int deduplicateFragment(File in, File fragment, SAMFileHeader header, String ref, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, boolean keepUnmapped, ReadCounts counts){
+        SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
+        SAMRecordIterator records = null;
+        Writer writer = null;
+
+        try{
+            records = ref == null ? reader.queryUnmapped() : reader.query(ref, 0, 0, false);
+            writer = new Writer(fragment, header, false, false, pools.getIOPool());
+            Map<Alignment, Map<BitSet, ReadFreq>> align = new HashMap<>(1 << 16);
+
+            umiLength = umiLengthParam;
+            Iterator<ParsedRead> parsed = new Parser(records, writer, counts, false, false, false, keepUnmapped);
+
+            while(parsed.hasNext()){
+                ParsedRead p = parsed.next();
+
+                if(p.alignment == null) // kept unmapped read
+                    writer.write(p.record);
+                else
+                    addRead(align, null, p.alignment, p.read, merge);
+            }
+
+            records.close();
+            records = null;
+            closeQuietly(reader);
+            reader = null;
+
+            deduplicatePositions(align, null, header, writer, algo, dataClass, k, percentage, false, false);
+            writer.close();
+
+            return align.size();
+        }finally{
+            // only left open by a failure
+            if(records != null)
+                records.close();
+
+            if(reader != null)
+                closeQuietly(reader);
+
+            if(writer != null)
+                writer.abort();
         }
+    }
 
+    private static void closeQuietly(SamReader reader){
         try{
             reader.close();
         }catch(Exception e){
             e.printStackTrace();
         }
+    }
 
-        reader = null;
+    // trade off speed for lower memory usage
+    // input should be sorted based on alignment for best results
+    public void deduplicateAndMergeTwoPass(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, String umiSeparator, boolean paired, boolean removeUnpaired, boolean removeChimeric, boolean keepUnmapped, boolean trackClusters){
+        startRun();
 
-        System.gc(); // attempt to clear up memory before deduplicating
+        try{
+            ParallelSAMReader firstPass = new ParallelSAMReader(in, pools.getIOPool(), IO_QUEUE_SIZE);
+            closeAtEnd(firstPass);
+            Writer writer = new Writer(out, firstPass.getFileHeader(), paired, spillMates, pools.getIOPool());
+            closeAtEnd(writer::abort);
+            Map<Alignment, AlignReads> align = new HashMap<>(1 << 16);
+            int totalReadCount = 0;
+            int unmapped = 0;
+            int unpaired = 0;
+            int chimeric = 0;
+            int readCount = 0;
+
+            // first pass to figure out where each alignment position ends
+            for(SAMRecord record : firstPass){
+                // always skip the reversed read
+                if(paired && record.getReadPairedFlag() && record.getSecondOfPairFlag())
+                    continue;
 
-        System.out.println("Done reading input file into memory!");
+                totalReadCount++;
 
-        int alignPosCount = align.size();
-        avgUMICount = 0;
-        maxUMICount = 0;
-        dedupedCount = 0;
-        Object lock = new Object();
+                if(record.getReadUnmappedFlag()){ // discard unmapped reads
+                    unmapped++;
+                    if(keepUnmapped)
+                        writer.write(record);
+                    continue;
+                }
 
-        final Map<Alignment, ClusterTracker> clusterTrackers = trackClusters ? new HashMap<Alignment, ClusterTracker>() : null;
+                if(paired){
+                    if(!record.getReadPairedFlag()){
+                        unpaired++;
 
-        Stream<Map.Entry<Alignment, Map<BitSet, ReadFreq>>> stream =
-            parallel ? align.entrySet().parallelStream() : ((paired && !trackClusters) ? align.entrySet().stream().sorted((a, b) -> a.getKey().getRef().compareTo(b.getKey().getRef())) : align.entrySet().stream());
+                        if(removeUnpaired)
+                            continue;
+                    }
 
-        stream.forEach(e -> {
-            List<Read> deduped;
-            Data data = null;
+                    if(record.getReadPairedFlag() && record.getMateUnmappedFlag()){
+                        unmapped++;
+                        continue;
+                    }
 
-            try{
-                data = dataClass.getDeclaredConstructor().newInstance();
-            }catch(Exception ex){
-                ex.printStackTrace();
-            }
+                    if(record.getReadPairedFlag() && !record.getReferenceName().equals(record.getMateReferenceName())){
+                        chimeric++;
 
-            ClusterTracker currTracker = new ClusterTracker(trackClusters);
+                        if(removeChimeric)
+                            continue;
+                    }
+                }
 
-            if(algo instanceof Algorithm)
-                deduped = ((Algorithm)algo).apply(e.getValue(), (DataStructure)data, currTracker, umiLength, k, percentage);
-            else
-                deduped = ((ParallelAlgorithm)algo).apply(e.getValue(), (ParallelDataStructure)data, currTracker, umiLength, k, percentage);
+                Alignment alignment = Alignment.fromRecord(record, paired);
 
-            synchronized(lock){
-                currTracker.setOffset(dedupedCount);
+                if(!align.containsKey(alignment))
+                    align.put(alignment, new AlignReads());
 
-                avgUMICount += e.getValue().size();
-                maxUMICount = Math.max(maxUMICount, e.getValue().size());
-                dedupedCount += deduped.size();
+                align.get(alignment).latest = readCount;
+                readCount++;
+            }
 
-                if(trackClusters){
-                    clusterTrackers.put(e.getKey(), currTracker);
-                }else{
-                    for(Read read : deduped)
-                        writer.write(((SAMRead)read).toSAMRecord());
-                }
+            try{
+                firstPass.close();
+            }catch(Exception e){
+                e.printStackTrace();
             }
-        });
 
-        // second pass to tag reads with their cluster and other stats
-        if(trackClusters){
+            firstPass = null;
+
             System.gc(); // attempt to clear up memory before second pass
 
-            System.out.println("Done with the first pass for tracking clusters!");
+            System.out.println("Done with the first pass!");
+            Metrics.phase("first_pass");
+
+            SAMRead.setDefaultUMISeparator(umiSeparator);
+
+            ParallelSAMReader reader = new ParallelSAMReader(in, pools.getIOPool(), IO_QUEUE_SIZE);
+
+            closeAtEnd(reader);
 
-            SamReader reader2 = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
+            umiLength = umiLengthParam;
+            int idx = 0;
+            int alignPosCount = align.size();
+            avgUMICount = 0;
+            maxUMICount = 0;
+            dedupedCount = 0;
+
+            for(SAMRecord record : reader){
+                if(paired && record.getReadPairedFlag() && record.getSecondOfPairFlag()){
+                    writer.addMate(record);
+                    continue;
+                }
 
-            for(SAMRecord record : reader2){
                 if(record.getReadUnmappedFlag()) // discard unmapped reads
                     continue;
 
@@ -198,522 +552,705 @@ public class DeduplicateSAM{
                     continue;
                 }
 
-                Alignment alignment = null;
+                Alignment alignment = Alignment.fromRecord(record, paired);
 
-                if(paired){
-                    alignment = new PairedAlignment(
-                            record.getReadNegativeStrandFlag(),
-                            record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                            record.getReferenceName(),
-                            record.getInferredInsertSize()
-                    );
-                }else{
-                    alignment = new Alignment(
-                            record.getReadNegativeStrandFlag(),
-                            record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                            record.getReferenceName()
-                    );
-                }
+                AlignReads alignReads = align.get(alignment);
 
-                ClusterTracker currTracker = clusterTrackers.get(alignment);
-                Map<BitSet, ReadFreq> map = align.get(alignment);
+                if(alignReads.umiRead == null){
+                    alignReads.umiRead = new UmiReadMap();
+
+                    if(trackClusters)
+                        alignReads.members = new HashMap<BitSet, List<SAMRecord>>(4);
+                }
 
                 Read read = new SAMRead(record);
                 BitSet umi = read.getUMI(umiLength);
 
-                int id = currTracker.getId(umi);
-                ClusterTracker.ClusterStats stats = currTracker.getStats(id);
-                int absId = id + currTracker.getOffset();
-                SAMRecord record2 = record.deepCopy();
-                ReadFreq readFreq = map.get(umi);
-
-                record2.setAttribute("MI", absId + "");
-                record2.setAttribute("RX", Utils.toString(stats.getUMI(), umiLength));
+                if(umiLength == -1)
+                    umiLength = read.getUMILength();
 
-                if(stats.getUMI().equals(umi) && stats.getRead().equals(read)){
-                    record2.setAttribute("cs", stats.getFreq());
-                    record2.setAttribute("su", readFreq.freq);
+                if(alignReads.umiRead.containsKey(umi)){
+                    ReadFreq prev = alignReads.umiRead.get(umi);
+                    prev.read = merge.merge(read, prev.read);
+                    prev.freq++;
                 }else{
-                    record2.setDuplicateReadFlag(true);
+                    alignReads.umiRead.put(umi, new ReadFreq(read, 1));
+                }
+
+                if(trackClusters){
+                    if(!alignReads.members.containsKey(umi))
+                        alignReads.members.put(umi, new ArrayList<SAMRecord>());
 
-                    if(readFreq.read.equals(read))
-                        record2.setAttribute("su", readFreq.freq);
+                    alignReads.members.get(umi).add(record);
                 }
 
-                writer.write(record2);
+                if(idx >= alignReads.latest){
+                    ClusterTracker tracker = new ClusterTracker(trackClusters);
+                    List<Read> deduped = deduplicate(alignReads.umiRead, algo, dataClass, tracker, k, percentage);
+
+                    avgUMICount += alignReads.umiRead.size();
+                    maxUMICount = Math.max(maxUMICount, alignReads.umiRead.size());
+                    tracker.setOffset(dedupedCount);
+                    dedupedCount += deduped.size();
+
+                    if(trackClusters){
+                        writeTagged(writer, alignReads.umiRead, alignReads.members, tracker);
+                    }else{
+                        for(Read r : deduped)
+                            writer.write(((SAMRead)r).toSAMRecord());
+                    }
+
+                    // done with the current alignment position, so free up memory
+                    align.remove(alignment);
+                }
+
+                idx++;
             }
 
             try{
-                reader2.close();
+                reader.close();
             }catch(Exception e){
                 e.printStackTrace();
             }
-        }
 
-        writer.close();
+            writer.close();
 
-        System.out.println("Number of input reads\t" + totalReadCount);
-        System.out.println("Number of removed unmapped reads\t" + unmapped);
+            Metrics.setInputReads(totalReadCount);
+            System.out.println("Number of input reads\t" + totalReadCount);
+            System.out.println("Number of removed unmapped reads\t" + unmapped);
 
-        if(paired){
-            System.out.println("Number of unpaired reads\t" + unpaired);
-            System.out.println("Number of chimeric reads\t" + chimeric);
-        }
+            if(paired){
+                System.out.println("Number of unpaired reads\t" + unpaired);
+                System.out.println("Number of chimeric reads\t" + chimeric);
+            }
 
-        System.out.println("Number of unremoved reads\t" + readCount);
-        System.out.println("Number of unique alignment positions\t" + alignPosCount);
-        System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
-        System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
+            System.out.println("Number of unremoved reads\t" + readCount);
+            System.out.println("Number of unique alignment positions\t" + alignPosCount);
+            System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
+            System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
 
-        if(trackClusters)
-            System.out.println("Number of groups of reads\t" + dedupedCount);
-        else
-            System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+            if(trackClusters)
+                System.out.println("Number of groups of reads\t" + dedupedCount);
+            else
+                System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        }finally{
+            finishRun();
+        }
     }
 
-    // trade off speed for lower memory usage
-    // input should be sorted based on alignment for best results
-    public void deduplicateAndMergeTwoPass(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, String umiSeparator, boolean paired, boolean removeUnpaired, boolean removeChimeric, boolean keepUnmapped, boolean trackClusters){
-        SamReader firstPass = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
-        Writer writer = new Writer(in, out, firstPass, paired);
-        Map<Alignment, AlignReads> align = new HashMap<>(1 << 16);
-        int totalReadCount = 0;
-        int unmapped = 0;
-        int unpaired = 0;
-        int chimeric = 0;
-        int readCount = 0;
-
-        // first pass to figure out where each alignment position ends
-        for(SAMRecord record : firstPass){
-            // always skip the reversed read
-            if(paired && record.getReadPairedFlag() && record.getSecondOfPairFlag())
-                continue;
-
-            totalReadCount++;
+    // single pass over a coordinate sorted input
+    // each alignment position is deduplicated and freed as soon as no more reads can be added to it,
+    // so only the positions within the current window are kept in memory
+    // with multiple threads, this runs as a pipeline: a parser thread, the bucketing of reads on the
+    // calling thread, a pool of threads deduplicating closed alignment positions, and an ordered writer thread
+    public void deduplicateAndMergeStreaming(File in, File out, Algo algo, Class<? extends Data> dataClass, Merge merge, int umiLengthParam, int k, float percentage, String umiSeparator, boolean paired, boolean removeUnpaired, boolean removeChimeric, boolean keepUnmapped, boolean trackClusters, int window, int threads){
+        startRun();
 
-            if(record.getReadUnmappedFlag()){ // discard unmapped reads
-                unmapped++;
-                if(keepUnmapped)
-                    writer.write(record);
-                continue;
-            }
+        try{
+            SAMRead.setDefaultUMISeparator(umiSeparator);
+
+            ParallelSAMReader reader = new ParallelSAMReader(in, pools.getIOPool(), IO_QUEUE_SIZE);
+
+            closeAtEnd(reader);
+            Writer writer = new Writer(out, reader.getFileHeader(), paired, spillMates, pools.getIOPool());
+            closeAtEnd(writer::abort);
+            Map<Alignment, Map<BitSet, ReadFreq>> align = new HashMap<>(1 << 10);
+            Map<Alignment, Map<BitSet, List<SAMRecord>>> members = trackClusters ? new HashMap<>(1 << 10) : null;
+            // alignment positions ordered by the coordinate after which they cannot receive any more reads
+            PriorityQueue<Alignment> pending = new PriorityQueue<>((a, b) -> Integer.compare(a.lastCoord(window), b.lastCoord(window)));
+            // the closed alignment positions are deduplicated on the compute pool
+            ExecutorService pool = threads > 1 ? pools.getComputePool() : null;
+
+            umiLength = umiLengthParam;
+            int alignPosCount = 0;
+            int prevRefIdx = -1;
+            int prevStart = 0;
+            // largest coordinate of the closed alignment positions on the current reference, for each strand
+            // a read that maps at or before this would reopen a position that was already deduplicated
+            int[] closedCoord = {Integer.MIN_VALUE, Integer.MIN_VALUE};
+            avgUMICount = 0;
+            maxUMICount = 0;
+            dedupedCount = 0;
+
+            ReadCounts counts = new ReadCounts();
+            Iterator<ParsedRead> parsed = new Parser(reader.iterator(), writer, counts, paired, removeUnpaired, removeChimeric, keepUnmapped);
+
+            AsyncIterator<ParsedRead> async = null;
+
+            if(pool != null)
+                parsed = async = new AsyncIterator<ParsedRead>(parsed, PIPELINE_BATCH_SIZE, PIPELINE_QUEUE_SIZE, "parser");
+
+            // written in the same order as the alignment positions are closed
+            OrderedWriter<Output> ordered = new OrderedWriter<Output>(pool, PIPELINE_QUEUE_SIZE, o -> write(writer, o), "writer");
 
-            if(paired){
-                if(!record.getReadPairedFlag()){
-                    unpaired++;
+            try{
+                while(parsed.hasNext()){
+                    ParsedRead p = parsed.next();
+                    int refIdx = p.record.getReferenceIndex();
+                    int start = p.record.getAlignmentStart();
+
+                    if(refIdx != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX){
+                        if(refIdx < prevRefIdx || (refIdx == prevRefIdx && start < prevStart))
+                            throw new IllegalArgumentException("The input file must be sorted by coordinate for streaming!");
+
+                        // close every alignment position that cannot be extended by this read or any later read
+                        while(!pending.isEmpty() && (refIdx != prevRefIdx || pending.peek().lastCoord(window) < start)){
+                            Alignment closed = pending.poll();
+                            int strandIdx = closed.getStrand() ? 1 : 0;
+                            closedCoord[strandIdx] = Math.max(closedCoord[strandIdx], closed.getCoord());
+                            close(closed, align, members, ordered, algo, dataClass, k, percentage);
+                            alignPosCount++;
+                        }
+
+                        if(refIdx != prevRefIdx){
+                            closedCoord[0] = Integer.MIN_VALUE;
+                            closedCoord[1] = Integer.MIN_VALUE;
+                        }
+
+                        prevRefIdx = refIdx;
+                        prevStart = start;
+                    }
 
-                    if(removeUnpaired)
+                    if(p.alignment == null){ // kept unmapped read
+                        ordered.add(new Output(p.record));
                         continue;
+                    }
+
+                    if(!align.containsKey(p.alignment)){
+                        // only possible when the read is clipped by more bases than the window
+                        if(p.alignment.getCoord() <= closedCoord[p.alignment.getStrand() ? 1 : 0])
+                            throw new IllegalArgumentException("The read " + p.record.getReadName() + " is clipped by more bases than --stream-window (" + window + "), so its alignment position was already deduplicated! Use a larger --stream-window.");
+
+                        align.put(p.alignment, new UmiReadMap());
+                        pending.add(p.alignment);
+                    }
+
+                    Map<BitSet, ReadFreq> umiRead = align.get(p.alignment);
+
+                    if(umiRead.containsKey(p.umi)){
+                        ReadFreq prev = umiRead.get(p.umi);
+                        prev.read = merge.merge(p.read, prev.read);
+                        prev.freq++;
+                    }else{
+                        umiRead.put(p.umi, new ReadFreq(p.read, 1));
+                    }
+
+                    if(trackClusters)
+                        addMember(members, p.alignment, p.umi, p.record);
                 }
 
-                if(record.getReadPairedFlag() && record.getMateUnmappedFlag()){
-                    unmapped++;
-                    continue;
+                // close the alignment positions at the end of the last reference
+                while(!pending.isEmpty()){
+                    close(pending.poll(), align, members, ordered, algo, dataClass, k, percentage);
+                    alignPosCount++;
                 }
 
-                if(record.getReadPairedFlag() && !record.getReferenceName().equals(record.getMateReferenceName())){
-                    chimeric++;
+                ordered.close();
+            }catch(RuntimeException | Error e){
+                // stops the writer thread, which would otherwise wait forever for more positions
+                ordered.abort();
+                throw e;
+            }finally{
+                if(async != null)
+                    async.close();
+            }
 
-                    if(removeChimeric)
-                        continue;
-                }
+            try{
+                reader.close();
+            }catch(Exception e){
+                e.printStackTrace();
             }
 
-            Alignment alignment = null;
+            writer.close();
+
+            Metrics.setInputReads(counts.total);
+            System.out.println("Number of input reads\t" + counts.total);
+            System.out.println("Number of removed unmapped reads\t" + counts.unmapped);
 
             if(paired){
-                alignment = new PairedAlignment(
-                        record.getReadNegativeStrandFlag(),
-                        record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                        record.getReferenceName(),
-                        record.getInferredInsertSize()
-                );
-            }else{
-                alignment = new Alignment(
-                        record.getReadNegativeStrandFlag(),
-                        record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                        record.getReferenceName()
-                );
+                System.out.println("Number of unpaired reads\t" + counts.unpaired);
+                System.out.println("Number of chimeric reads\t" + counts.chimeric);
             }
 
-            if(!align.containsKey(alignment))
-                align.put(alignment, new AlignReads());
+            System.out.println("Number of unremoved reads\t" + counts.kept);
+            System.out.println("Number of unique alignment positions\t" + alignPosCount);
+            System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
+            System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
 
-            align.get(alignment).latest = readCount;
-            readCount++;
+            if(trackClusters)
+                System.out.println("Number of groups of reads\t" + dedupedCount);
+            else
+                System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        }finally{
+            finishRun();
         }
+    }
 
-        try{
-            firstPass.close();
-        }catch(Exception e){
-            e.printStackTrace();
-        }
+    // deduplicates and writes every alignment position in memory
+    private void deduplicatePositions(Map<Alignment, Map<BitSet, ReadFreq>> align, Map<Alignment, Map<BitSet, List<SAMRecord>>> members, SAMFileHeader header, Writer writer, Algo algo, Class<? extends Data> dataClass, int k, float percentage, boolean parallel, boolean paired){
+        boolean trackClusters = members != null;
 
-        firstPass = null;
+        if(parallel){
+            // positions are deduplicated largest first, but handed to a writer thread in coordinate order
+            // (by reference, then coordinate, then strand), so the output and the cluster IDs do not depend on which
+            // thread finishes first
+            List<Alignment> positions = new ArrayList<>(align.keySet());
+            positions.sort((a, b) -> {
+                int refA = header.getSequenceIndex(a.getRef());
+                int refB = header.getSequenceIndex(b.getRef());
 
-        System.gc(); // attempt to clear up memory before second pass
+                if(refA != refB)
+                    return Integer.compare(refA, refB);
 
-        System.out.println("Done with the first pass!");
+                if(a.getCoord() != b.getCoord())
+                    return Integer.compare(a.getCoord(), b.getCoord());
 
-        SAMRead.setDefaultUMIPattern(umiSeparator);
+                return a.compareTo(b);
+            });
 
-        SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
+            List<Map.Entry<Integer, Map<BitSet, ReadFreq>>> entries = new ArrayList<>(positions.size());
+            List<CompletableFuture<Output>> results = new ArrayList<>(positions.size());
 
-        umiLength = umiLengthParam;
-        int idx = 0;
-        int alignPosCount = align.size();
-        avgUMICount = 0;
-        maxUMICount = 0;
-        dedupedCount = 0;
-
-        for(SAMRecord record : reader){
-            if(record.getReadUnmappedFlag()) // discard unmapped reads
-                continue;
-
-            if(paired && ((removeUnpaired && !record.getReadPairedFlag()) // discard unpaired
-                        || (record.getReadPairedFlag() && record.getSecondOfPairFlag()) // ignore reversed reads
-                        || (record.getReadPairedFlag() && record.getMateUnmappedFlag()) // discard unmapped reads
-                        || (removeChimeric && record.getReadPairedFlag()
-                            && !record.getReferenceName().equals(record.getMateReferenceName())))){ // discard chimeric reads
-                continue;
+            for(int i = 0; i < positions.size(); i++){
+                entries.add(new AbstractMap.SimpleEntry<>(i, align.get(positions.get(i))));
+                results.add(new CompletableFuture<Output>());
             }
 
-            Alignment alignment = null;
+            Future<?> workers = pools.getComputePool().submit(() -> {
+                try{
+                    forEachLargestFirst(entries, e -> {
+                        boolean large = largeAlgo != null && e.getValue().size() >= LARGE_POSITION_UMIS;
+                        ClusterTracker currTracker = new ClusterTracker(trackClusters);
+                        List<Read> deduped = deduplicate(e.getValue(), large ? largeAlgo : algo, large ? largeDataClass : dataClass, currTracker, k, percentage);
+                        results.get(e.getKey()).complete(new Output(deduped, e.getValue(), trackClusters ? members.get(positions.get(e.getKey())) : null, currTracker));
+                    }, pools.getComputeThreads());
+                }catch(RuntimeException | Error ex){
+                    // the positions that are not done yet (including the rest of the failed batch) would never be
+                    // completed, so they are all failed to keep the writer thread from waiting forever
+                    for(CompletableFuture<Output> result : results)
+                        result.completeExceptionally(ex);
+
+                    throw ex;
+                }
+            });
 
-            if(paired){
-                alignment = new PairedAlignment(
-                        record.getReadNegativeStrandFlag(),
-                        record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                        record.getReferenceName(),
-                        record.getInferredInsertSize()
-                );
-            }else{
-                alignment = new Alignment(
-                        record.getReadNegativeStrandFlag(),
-                        record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
-                        record.getReferenceName()
-                );
+            // the counters are only updated by this thread and the writer thread, so no locking is needed
+            OrderedWriter<Output> ordered = new OrderedWriter<Output>(pools.getComputePool(), PIPELINE_QUEUE_SIZE, o -> write(writer, o), "writer");
+
+            try{
+                for(int i = 0; i < positions.size(); i++){
+                    avgUMICount += entries.get(i).getValue().size();
+                    maxUMICount = Math.max(maxUMICount, entries.get(i).getValue().size());
+                    ordered.add(results.get(i));
+                }
+
+                ordered.close();
+            }catch(RuntimeException | Error e){
+                ordered.abort();
+                throw e;
             }
 
-            AlignReads alignReads = align.get(alignment);
+            try{
+                workers.get();
+            }catch(Exception e){
+                throw new RuntimeException(e);
+            }
+        }else{
+            Consumer<Map.Entry<Alignment, Map<BitSet, ReadFreq>>> dedupPosition = e -> {
+                ClusterTracker currTracker = new ClusterTracker(trackClusters);
+                List<Read> deduped = deduplicate(e.getValue(), algo, dataClass, currTracker, k, percentage);
 
-            if(alignReads.umiRead == null)
-                alignReads.umiRead = new HashMap<BitSet, ReadFreq>(4);
+                avgUMICount += e.getValue().size();
+                maxUMICount = Math.max(maxUMICount, e.getValue().size());
+                write(writer, new Output(deduped, e.getValue(), trackClusters ? members.get(e.getKey()) : null, currTracker));
+            };
 
-            Read read = new SAMRead(record);
-            BitSet umi = read.getUMI(umiLength);
+            // everything runs on the compute pool, so the parallel algorithms (-T) fork onto the same threads
+            pools.execute(() -> {
+                if(paired)
+                    align.entrySet().stream().sorted((a, b) -> a.getKey().getRef().compareTo(b.getKey().getRef())).forEach(dedupPosition);
+                else
+                    align.entrySet().forEach(dedupPosition);
+            });
+        }
+    }
 
-            if(umiLength == -1)
-                umiLength = read.getUMILength();
+    // the pools and the files that are opened by a run are owned by it, and are released at the end of it even if
+    // it fails, so a failed run does not leave threads, open files, or temporary files behind
+    private void startRun(){
+        pools = new ThreadPools(threads, ioThreads);
+        resources = new ArrayDeque<>();
+    }
+
+    // closed in reverse order at the end of the run, so the resources must allow being closed again
+    private void closeAtEnd(AutoCloseable resource){
+        resources.push(resource);
+    }
 
-            if(alignReads.umiRead.containsKey(umi)){
-                ReadFreq prev = alignReads.umiRead.get(umi);
-                prev.read = merge.merge(read, prev.read);
-                prev.freq++;
-            }else{
-                alignReads.umiRead.put(umi, new ReadFreq(read, 1));
+    // everything that is still open was left behind by a failure, so it is closed without writing anything more
+    // and the pools are stopped without waiting for the tasks that are still running
+    private void finishRun(){
+        while(!resources.isEmpty()){
+            try{
+                resources.pop().close();
+            }catch(Exception e){
+                e.printStackTrace();
             }
+        }
 
-            if(idx >= alignReads.latest){
-                List<Read> deduped;
-                Data data = null;
+        pools.shutdownNow();
+        pools = null;
+        resources = null;
+    }
 
-                try{
-                    data = dataClass.getDeclaredConstructor().newInstance();
-                }catch(Exception ex){
-                    ex.printStackTrace();
-                }
+    private void close(Alignment alignment, Map<Alignment, Map<BitSet, ReadFreq>> align, Map<Alignment, Map<BitSet, List<SAMRecord>>> members, OrderedWriter<Output> ordered, Algo algo, Class<? extends Data> dataClass, int k, float percentage){
+        Map<BitSet, ReadFreq> umiRead = align.remove(alignment);
+        Map<BitSet, List<SAMRecord>> groupMembers = members == null ? null : members.remove(alignment);
+        ClusterTracker tracker = new ClusterTracker(members != null);
 
-                if(algo instanceof Algorithm)
-                    deduped = ((Algorithm)algo).apply(alignReads.umiRead, (DataStructure)data, new ClusterTracker(trackClusters), umiLength, k, percentage);
-                else
-                    deduped = ((ParallelAlgorithm)algo).apply(alignReads.umiRead, (ParallelDataStructure)data, new ClusterTracker(trackClusters), umiLength, k, percentage);
+        avgUMICount += umiRead.size();
+        maxUMICount = Math.max(maxUMICount, umiRead.size());
+        ordered.submit(() -> new Output(deduplicate(umiRead, algo, dataClass, tracker, k, percentage), umiRead, groupMembers, tracker));
+    }
 
-                avgUMICount += alignReads.umiRead.size();
-                maxUMICount = Math.max(maxUMICount, alignReads.umiRead.size());
-                dedupedCount += deduped.size();
+    // writes the retained (or tagged) reads of a deduplicated alignment position, or a single kept unmapped read
+    private void write(Writer writer, Output o){
+        if(o.deduped == null){
+            writer.write(o.record);
+        }else if(o.tracker.shouldTrack()){
+            // cluster IDs are assigned in the order the alignment positions are written
+            o.tracker.setOffset(dedupedCount);
+            dedupedCount += o.deduped.size();
+            writeTagged(writer, o.umiRead, o.members, o.tracker);
+        }else{
+            dedupedCount += o.deduped.size();
+
+            for(Read r : o.deduped)
+                writer.write(((SAMRead)r).toSAMRecord());
+        }
+    }
 
-                for(Read r : deduped)
-                    writer.write(((SAMRead)r).toSAMRecord());
+    // groups a read by its alignment position and UMI
+    private void addRead(Map<Alignment, Map<BitSet, ReadFreq>> align, Map<Alignment, Map<BitSet, List<SAMRecord>>> members, Alignment alignment, Read read, Merge merge){
+        if(!align.containsKey(alignment))
+            align.put(alignment, new UmiReadMap());
 
-                // done with the current alignment position, so free up memory
-                align.remove(alignment);
-            }
+        Map<BitSet, ReadFreq> umiRead = align.get(alignment);
 
-            idx++;
-        }
+        BitSet umi = read.getUMI(umiLength);
 
-        try{
-            reader.close();
-        }catch(Exception e){
-            e.printStackTrace();
+        if(umiLength == -1)
+            umiLength = read.getUMILength();
+
+        if(umiRead.containsKey(umi)){
+            ReadFreq prev = umiRead.get(umi);
+            prev.read = merge.merge(read, prev.read);
+            prev.freq++;
+        }else{
+            umiRead.put(umi, new ReadFreq(read, 1));
         }
 
-        writer.close();
+        if(members != null)
+            addMember(members, alignment, umi, ((SAMRead)read).toSAMRecord());
+    }
 
-        System.out.println("Number of input reads\t" + totalReadCount);
-        System.out.println("Number of removed unmapped reads\t" + unmapped);
+    private static void addMember(Map<Alignment, Map<BitSet, List<SAMRecord>>> members, Alignment alignment, BitSet umi, SAMRecord record){
+        if(!members.containsKey(alignment))
+            members.put(alignment, new HashMap<BitSet, List<SAMRecord>>(4));
 
-        if(paired){
-            System.out.println("Number of unpaired reads\t" + unpaired);
-            System.out.println("Number of chimeric reads\t" + chimeric);
-        }
+        Map<BitSet, List<SAMRecord>> umiMembers = members.get(alignment);
 
-        System.out.println("Number of unremoved reads\t" + readCount);
-        System.out.println("Number of unique alignment positions\t" + alignPosCount);
-        System.out.println("Average number of UMIs per alignment position\t" + ((double)avgUMICount / alignPosCount));
-        System.out.println("Max number of UMIs over all alignment positions\t" + maxUMICount);
-        System.out.println("Number of reads after deduplicating\t" + dedupedCount);
+        if(!umiMembers.containsKey(umi))
+            umiMembers.put(umi, new ArrayList<SAMRecord>());
+
+        umiMembers.get(umi).add(record);
     }
 
-    private static class ReversedRead implements Comparable{
-        private String name, ref;
-        private int coord;
+    // tag the retained reads of an alignment position with their cluster and other stats
+    private void writeTagged(Writer writer, Map<BitSet, ReadFreq> umiRead, Map<BitSet, List<SAMRecord>> members, ClusterTracker tracker){
+        for(Map.Entry<BitSet, List<SAMRecord>> e : members.entrySet()){
+            BitSet umi = e.getKey();
+            int id = tracker.getId(umi);
+            ClusterTracker.ClusterStats stats = tracker.getStats(id);
+            String absId = (id + tracker.getOffset()) + "";
+            String consensusUMI = Utils.toString(stats.getUMI(), umiLength);
+            SAMRecord consensus = ((SAMRead)stats.getRead()).toSAMRecord();
+            ReadFreq readFreq = umiRead.get(umi);
+            SAMRecord best = ((SAMRead)readFreq.read).toSAMRecord();
+
+            for(SAMRecord record : e.getValue()){
+                record.setAttribute("MI", absId);
+                record.setAttribute("RX", consensusUMI);
+
+                if(record == consensus){
+                    record.setAttribute("cs", stats.getFreq());
+                    record.setAttribute("su", readFreq.freq);
+                }else{
+                    record.setDuplicateReadFlag(true);
+
+                    if(record == best)
+                        record.setAttribute("su", readFreq.freq);
+                }
 
-        public ReversedRead(String name, String ref, int coord){
-            this.name = name;
-            this.ref = ref.intern();
-            this.coord = coord;
+                writer.write(record);
+            }
         }
+    }
 
-        @Override
-        public boolean equals(Object o){
-            if(!(o instanceof ReversedRead))
-                return false;
+    // splitting the positions evenly by count leaves a few huge positions as stragglers on one thread,
+    // so the positions are handed out largest first to whichever thread is free,
+    // and small positions are batched so that each one does not have to be handed out separately
+    private static <K> void forEachLargestFirst(List<Map.Entry<K, Map<BitSet, ReadFreq>>> entries, Consumer<Map.Entry<K, Map<BitSet, ReadFreq>>> action, int threads){
+        entries.sort((a, b) -> Integer.compare(b.getValue().size(), a.getValue().size()));
 
-            ReversedRead a = (ReversedRead)o;
+        List<List<Map.Entry<K, Map<BitSet, ReadFreq>>>> batches = new ArrayList<>();
+        List<Map.Entry<K, Map<BitSet, ReadFreq>>> batch = new ArrayList<>();
+        int batchUMIs = 0;
 
-            if(this == a)
-                return true;
+        for(Map.Entry<K, Map<BitSet, ReadFreq>> e : entries){
+            batch.add(e);
+            batchUMIs += e.getValue().size();
 
-            if(ref != a.ref)
-                return false;
+            if(batchUMIs >= BATCH_UMIS){
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchUMIs = 0;
+            }
+        }
 
-            if(!name.equals(a.name))
-                return false;
+        if(!batch.isEmpty())
+            batches.add(batch);
 
-            return true;
-        }
+        AtomicInteger next = new AtomicInteger(0);
 
-        @Override
-        public int hashCode(){
-            int hash = name.hashCode();
-            hash = hash * HASH_CONST + ref.hashCode();
-            hash = hash * HASH_CONST + coord;
-            return hash;
-        }
+        // one task per thread that keeps taking the next batch
+        // the parallel algorithm for large positions forks onto the same pool, so idle threads steal its work
+        IntStream.range(0, threads).parallel().forEach(t -> {
+            int i;
 
-        @Override
-        public int compareTo(Object o){
-            ReversedRead other = (ReversedRead)o;
+            try{
+                while((i = next.getAndIncrement()) < batches.size())
+                    batches.get(i).forEach(action);
+            }catch(RuntimeException | Error ex){
+                next.set(batches.size()); // the other threads stop after their current batch
+                throw ex;
+            }
+        });
+    }
 
-            if(coord != other.coord)
-                return coord - other.coord;
+    private List<Read> deduplicate(Map<BitSet, ReadFreq> umiRead, Algo algo, Class<? extends Data> dataClass, ClusterTracker tracker, int k, float percentage){
+        Metrics.recordUMICount(umiRead.size());
+        Data data = null;
 
-            if(ref != other.ref)
-                return ref.compareTo(other.ref);
+        try{
+            data = dataClass.getDeclaredConstructor().newInstance();
+        }catch(Exception ex){
+            ex.printStackTrace();
+        }
 
-            return name.compareTo(other.name);
+        if(algo instanceof Algorithm){
+            return ((Algorithm)algo).apply(umiRead, (DataStructure)data, tracker, umiLength, k, percentage);
+        }else{
+            ParallelDataStructure parallelData = (ParallelDataStructure)data;
+            return pools.compute(() -> ((ParallelAlgorithm)algo).apply(umiRead, parallelData, tracker, umiLength, k, percentage));
         }
     }
 
-    // heavily inspired by TwoPassPairWriter from UMI-tools
-    private static class Writer{
-        private boolean paired;
-        private SAMFileWriter writer;
-        private File in;
-        private String ref = null;
-        private HashSet<ReversedRead> set;
+    private static class ReadCounts{
+        public int total, unmapped, unpaired, chimeric, kept;
+    }
 
-        public Writer(File in, File out, SamReader r, boolean paired){
-            if(paired){
-                this.in = in;
-                this.set = new HashSet<ReversedRead>();
-            }
+    // a read that passed the filters, along with its alignment position and UMI
+    private static class ParsedRead{
+        public SAMRecord record;
+        public Alignment alignment;
+        public Read read;
+        public BitSet umi;
+
+        public ParsedRead(SAMRecord record, Alignment alignment, Read read, BitSet umi){
+            this.record = record;
+            this.alignment = alignment;
+            this.read = read;
+            this.umi = umi;
+        }
+    }
 
-            this.writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(r.getFileHeader(), false, out);
+    // filters the input reads and extracts their alignment positions and UMIs
+    private class Parser implements Iterator<ParsedRead>{
+        private Iterator<SAMRecord> records;
+        private Writer writer;
+        private ReadCounts counts;
+        private boolean paired, removeUnpaired, removeChimeric, keepUnmapped;
+        private ParsedRead next = null;
+
+        public Parser(Iterator<SAMRecord> records, Writer writer, ReadCounts counts, boolean paired, boolean removeUnpaired, boolean removeChimeric, boolean keepUnmapped){
+            this.records = records;
+            this.writer = writer;
+            this.counts = counts;
             this.paired = paired;
+            this.removeUnpaired = removeUnpaired;
+            this.removeChimeric = removeChimeric;
+            this.keepUnmapped = keepUnmapped;
         }
 
-        public void write(SAMRecord record){
-            if(paired){ // must be forwards read
-                String currRef = record.getReferenceName();
+        @Override
+        public boolean hasNext(){
+            while(next == null && records.hasNext())
+                next = parse(records.next());
 
-                if(ref == null)
-                    ref = currRef;
+            return next != null;
+        }
 
-                if(!ref.equals(currRef)){
-                    writeReversed(false);
-                    ref = currRef;
-                }
+        @Override
+        public ParsedRead next(){
+            hasNext();
+            ParsedRead res = next;
+            next = null;
+            return res;
+        }
 
-                if(record.getReadPairedFlag()){
-                    set.add(new ReversedRead(
-                            record.getReadName(),
-                            record.getMateReferenceName(),
-                            record.getMateAlignmentStart()
-                    ));
-                }
+        private ParsedRead parse(SAMRecord record){
+            // always skip the reversed read
+            if(paired && record.getReadPairedFlag() && record.getSecondOfPairFlag()){
+                writer.addMate(record);
+                return null;
             }
 
-            writer.addAlignment(record);
-        }
+            counts.total++;
 
-        public void close(){
-            if(paired)
-                writeReversed(true);
+            if(record.getReadUnmappedFlag()){ // discard unmapped reads
+                counts.unmapped++;
+                return keepUnmapped ? new ParsedRead(record, null, null, null) : null;
+            }
 
-            writer.close();
-        }
+            if(paired){
+                if(!record.getReadPairedFlag()){
+                    counts.unpaired++;
 
-        private void writeReversed(boolean fullPass){
-            if(ref == null)
-                return;
+                    if(removeUnpaired)
+                        return null;
+                }
+
+                if(record.getReadPairedFlag() && record.getMateUnmappedFlag()){
+                    counts.unmapped++;
+                    return null;
+                }
 
-            SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(in);
-            SAMRecordIterator iter = null;
+                if(record.getReadPairedFlag() && !record.getReferenceName().equals(record.getMateReferenceName())){
+                    counts.chimeric++;
 
-            if(fullPass)
-                iter = reader.iterator();
-            else
-                iter = reader.query(ref, 0, 0, true);
-
-            while(iter.hasNext()){
-                SAMRecord record = iter.next();
-
-                if(!record.getReadUnmappedFlag()
-                        && record.getReadPairedFlag()
-                        && record.getSecondOfPairFlag()
-                        && !record.getMateUnmappedFlag()){
-                    ReversedRead read = new ReversedRead(
-                            record.getReadName(),
-                            record.getReferenceName(),
-                            record.getAlignmentStart()
-                    );
-
-                    if(set.contains(read)){
-                        writer.addAlignment(record);
-                        set.remove(read);
-                    }
+                    if(removeChimeric)
+                        return null;
                 }
             }
 
-            try{
-                reader.close();
-            }catch(Exception e){
-                e.printStackTrace();
-            }
-        }
-    }
+            Read read = new SAMRead(record);
+            BitSet umi = read.getUMI(umiLength);
 
-    private static class AlignReads{
-        public int latest;
-        public Map<BitSet, ReadFreq> umiRead;
+            if(umiLength == -1)
+                umiLength = read.getUMILength();
 
-        public AlignReads(){
-            this.latest = 0;
-            this.umiRead = null;
+            counts.kept++;
+            return new ParsedRead(record, Alignment.fromRecord(record, paired), read, umi);
         }
     }
 
-    private static class PairedAlignment extends Alignment{
-        private int tlen;
-
-        public PairedAlignment(boolean strand, int coord, String ref, int tlen){
-            super(strand, coord, ref);
-            this.tlen = tlen;
+    // reads to write after deduplicating an alignment position, or a single record that is written as is
+    private static class Output{
+        public List<Read> deduped;
+        public Map<BitSet, ReadFreq> umiRead;
+        public Map<BitSet, List<SAMRecord>> members;
+        public ClusterTracker tracker;
+        public SAMRecord record;
+
+        public Output(List<Read> deduped, Map<BitSet, ReadFreq> umiRead, Map<BitSet, List<SAMRecord>> members, ClusterTracker tracker){
+            this.deduped = deduped;
+            this.umiRead = umiRead;
+            this.members = members;
+            this.tracker = tracker;
         }
 
-        @Override
-        public boolean equals(Object o){
-            if(!(o instanceof Alignment))
-                return false;
-
-            PairedAlignment a = (PairedAlignment)o;
+        public Output(SAMRecord record){
+            this.record = record;
+        }
+    }
 
-            if(this == a)
-                return true;
+    private static class Writer{
+        private boolean paired;
+        private SAMFileWriter writer;
+        private MateBuffer mates;
+        private String ref = null;
+        private boolean closed = false;
 
-            if(tlen != a.tlen)
-                return false;
+        public Writer(File out, SAMFileHeader header, boolean paired, boolean spillMates, ExecutorService ioPool){
+            if(ioPool != null && out.getName().endsWith(".bam"))
+                this.writer = new ParallelBAMWriter(header, false, out, ioPool, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL, IO_QUEUE_SIZE);
+            else
+                this.writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(header, false, out);
 
-            return super.equals(a);
-        }
+            if(paired)
+                this.mates = new MateBuffer(this.writer, header, spillMates);
 
-        @Override
-        public int hashCode(){
-            int hash = super.hashCode();
-            hash = hash * HASH_CONST + tlen;
-            return hash;
+            this.paired = paired;
         }
 
-        @Override
-        public int compareTo(Object o){
-            PairedAlignment other = (PairedAlignment)o;
+        public synchronized void write(SAMRecord record){
+            if(paired){ // must be forwards read
+                String currRef = record.getReferenceName();
 
-            if(tlen != other.tlen)
-                return Integer.compare(tlen, other.tlen);
+                if(ref != null && !ref.equals(currRef))
+                    mates.finishRef(ref);
 
-            return super.compareTo(other);
-        }
-    }
+                ref = currRef;
 
-    private static class Alignment implements Comparable{
-        private boolean strand;
-        private int coord;
-        private String ref;
+                if(record.getReadPairedFlag())
+                    mates.keep(record);
+            }
 
-        public Alignment(boolean strand, int coord, String ref){
-            this.strand = strand;
-            this.coord = coord;
-            this.ref = ref.intern();
+            writer.addAlignment(record);
         }
 
-        public String getRef(){
-            return ref;
+        // reversed reads are captured while reading the input, and only written if their forwards reads are written
+        public synchronized void addMate(SAMRecord record){
+            if(!record.getReadUnmappedFlag() && !record.getMateUnmappedFlag())
+                mates.addMate(record);
         }
 
-        @Override
-        public boolean equals(Object o){
-            if(!(o instanceof Alignment))
-                return false;
+        public void close(){
+            if(closed)
+                return;
 
-            Alignment a = (Alignment)o;
+            closed = true;
 
-            if(this == a)
-                return true;
+            if(paired)
+                mates.close();
 
-            if(strand != a.strand)
-                return false;
+            writer.close();
+        }
 
-            if(coord != a.coord)
-                return false;
+        // closes the output after a failure, without writing the mates that are still buffered
+        public void abort(){
+            if(closed)
+                return;
 
-            if(ref != a.ref) // can directly compare interned strings
-                return false;
+            closed = true;
 
-            return true;
-        }
+            if(paired)
+                mates.abort();
 
-        @Override
-        public int hashCode(){
-            int hash = strand ? 1231 : 1237;
-            hash = hash * HASH_CONST + coord;
-            hash = hash * HASH_CONST + ref.hashCode();
-            return hash;
+            writer.close();
         }
+    }
 
-        @Override
-        public int compareTo(Object o){
-            Alignment other = (Alignment)o;
-
-            if(strand != other.strand)
-                return Boolean.compare(strand, other.strand);
-
-            if(coord != other.coord)
-                return coord - other.coord;
+    private static class AlignReads{
+        public int latest;
+        public Map<BitSet, ReadFreq> umiRead;
+        public Map<BitSet, List<SAMRecord>> members;
 
-            return ref.compareTo(other.ref);
+        public AlignReads(){
+            this.latest = 0;
+            this.umiRead = null;
+            this.members = null;
         }
     }
 }
@@ -13,6 +13,7 @@ import umicollapse.merge.*;
 import umicollapse.algo.*;
 import umicollapse.util.Read;  // 添加这行导入
 import umicollapse.util.ByteBufferPool;  // 添加这行导入
+import umicollapse.util.Metrics;
 
 public class Main{
     public static void main(String[] args){
@@ -60,11 +61,20 @@ public class Main{
             d1.put("ngrambktree", NgramBKTree.class);
             d1.put("sortngrambktree", SortNgramBKTree.class);
             d1.put("fenwickbktree", FenwickBKTree.class);
+            d1.put("flatbktree", FlatBKTree.class);
             data.put(false, d1);
             Map<String, Class<? extends Data>> d2 = new HashMap<>();
             d2.put("naive", ParallelNaive.class);
+            d2.put("combo", ParallelCombo.class);
+            d2.put("ngram", ParallelNgram.class);
+            d2.put("delete", ParallelSymmetricDelete.class);
+            d2.put("trie", ParallelTrie.class);
             d2.put("bktree", ParallelBKTree.class);
+            d2.put("sortbktree", ParallelBKTree.class); // sorting only changes the order of removals, and nothing is removed in parallel
+            d2.put("ngrambktree", ParallelNgramBKTree.class);
+            d2.put("sortngrambktree", ParallelNgramBKTree.class);
             d2.put("fenwickbktree", ParallelFenwickBKTree.class);
+            d2.put("flatbktree", ParallelFlatBKTree.class);
             data.put(true, d2);
 
             Map<String, Class<? extends Merge>> merge = new HashMap<>();
@@ -75,6 +85,10 @@ public class Main{
             String mode = args[0];
             File in = null;
             File out = null;
+            File mateIn = null;
+            File mateOut = null;
+            int readPrefix = Integer.MAX_VALUE;
+            int matePrefix = Integer.MAX_VALUE;
             String algoStr = "dir";
             String dataStr = "ngrambktree";
             String mergeStr = mode.equals("fastq") ? "avgqual" : "mapqual";
@@ -85,8 +99,14 @@ public class Main{
 
             boolean parallelData = false;
             boolean parallelAlign = false;
+            int threads = 1;
 
             boolean twoPass = false;
+            boolean stream = false;
+            int streamWindow = 1000;
+            int partitions = 0;
+            int exactPartitions = 0;
+            boolean byContig = false;
 
             boolean paired = false;
             boolean removeUnpaired = false;
@@ -96,6 +116,8 @@ public class Main{
             boolean trackClusters = false;
 
             boolean quickIO = false;
+            int ioThreads = 0;
+            boolean spillMates = false;
 
             String s = "-k";
 
@@ -119,6 +141,9 @@ public class Main{
             else
                 throw new IllegalArgumentException("Missing input file!");
 
+            if(m.get(s).size() > 1)
+                mateIn = new File(m.get(s).get(1));
+
             s = "-o";
 
             if(m.containsKey(s))
@@ -126,10 +151,51 @@ public class Main{
             else
                 throw new IllegalArgumentException("Missing output file!");
 
+            if(m.get(s).size() > 1)
+                mateOut = new File(m.get(s).get(1));
+
+            if((mateIn == null) != (mateOut == null))
+                throw new IllegalArgumentException("Paired-end FASTQ files need two input files and two output files!");
+
+            if(mateIn != null && !mode.equals("fastq"))
+                throw new IllegalArgumentException("Only one input file and one output file can be used in SAM/BAM mode!");
+
+            ReadKey readKey = null;
+            s = "--key-prefix";
+
+            if(m.containsKey(s))
+                readKey = new PrefixKey(Math.max(umiLength, 0) + Integer.parseInt(m.get(s).get(0)));
+
+            s = "--key-minimizer";
+
+            if(m.containsKey(s)){
+                if(readKey != null)
+                    throw new IllegalArgumentException("Only one of --key-prefix and --key-minimizer can be used!");
+
+                readKey = new MinimizerKey(Integer.parseInt(m.get(s).get(0)));
+                System.err.println("Warning: --key-minimizer is approximate, so some reads within -k edits of each other may not be merged!");
+            }
+
+            if(readKey != null && !mode.equals("fastq"))
+                throw new UnsupportedOperationException("Reads can only be keyed in FASTQ mode!");
+
+            s = "--read-prefix";
+
+            if(m.containsKey(s))
+                readPrefix = Math.max(umiLength, 0) + Integer.parseInt(m.get(s).get(0));
+
+            s = "--mate-prefix";
+
+            if(m.containsKey(s))
+                matePrefix = Integer.parseInt(m.get(s).get(0));
+
+            if((m.containsKey("--read-prefix") || m.containsKey("--mate-prefix")) && mateIn == null)
+                throw new IllegalArgumentException("--read-prefix and --mate-prefix can only be used with paired-end FASTQ files!");
+
             s = "-t";
 
             if(m.containsKey(s)){
-                System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", (Integer.parseInt(m.get(s).get(0)) - 1) + "");
+                threads = Integer.parseInt(m.get(s).get(0));
                 parallelAlign = true;
                 parallelData = false;
             }
@@ -137,7 +203,7 @@ public class Main{
             s = "-T";
 
             if(m.containsKey(s)){
-                System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", (Integer.parseInt(m.get(s).get(0)) - 1) + "");
+                threads = Integer.parseInt(m.get(s).get(0));
                 parallelData = true;
                 parallelAlign = false;
             }
@@ -167,6 +233,44 @@ public class Main{
             if(m.containsKey(s))
                 twoPass = true;
 
+            s = "--stream";
+
+            if(m.containsKey(s))
+                stream = true;
+
+            s = "--stream-window";
+
+            if(m.containsKey(s))
+                streamWindow = Integer.parseInt(m.get(s).get(0));
+
+            s = "--partitions";
+
+            if(m.containsKey(s)){
+                if(mode.equals("fastq"))
+                    throw new UnsupportedOperationException("Cannot split FASTQ files into partitions by alignment position! Use --exact-partitions to only remove exact duplicates.");
+
+                partitions = Integer.parseInt(m.get(s).get(0));
+            }
+
+            s = "--exact-partitions";
+
+            if(m.containsKey(s)){
+                if(!mode.equals("fastq"))
+                    throw new UnsupportedOperationException("Only FASTQ files can be split into exact partitions! Use --partitions instead.");
+
+                // similar reads could end up in different partitions, so only exact duplicates are removed
+                if(m.containsKey("-k") && k != 0)
+                    throw new IllegalArgumentException("--exact-partitions only removes exact duplicates, so it cannot be used with -k above 0!");
+
+                exactPartitions = Integer.parseInt(m.get(s).get(0));
+                k = 0;
+            }
+
+            s = "--by-contig";
+
+            if(m.containsKey(s))
+                byContig = true;
+
             s = "--paired";
 
             if(m.containsKey(s))
@@ -198,14 +302,47 @@ public class Main{
                 Read.setQuickIOMode(true);
             }
 
+            s = "--io-threads";
+
+            if(m.containsKey(s))
+                ioThreads = Integer.parseInt(m.get(s).get(0));
+
+            s = "--spill-mates";
+
+            if(m.containsKey(s))
+                spillMates = true;
+
+            File metrics = null;
+            s = "--metrics";
+
+            if(m.containsKey(s)){
+                metrics = new File(m.get(s).get(0));
+                Metrics.enable();
+            }
+
             s = "--cache";
             if(m.containsKey(s))
                 System.setProperty("CACHE", "true");
 
-            if(trackClusters && twoPass)
-                throw new UnsupportedOperationException("Cannot track clusters with the two pass algorithm!");
+            if(twoPass && stream)
+                throw new UnsupportedOperationException("Cannot use both the two pass and the streaming algorithms!");
+
+            if(exactPartitions > 0 && mateIn != null)
+                throw new UnsupportedOperationException("Cannot split paired-end FASTQ files into partitions!");
+
+            if(partitions > 0 && (twoPass || stream))
+                throw new UnsupportedOperationException("Cannot split the input into partitions with the two pass or the streaming algorithms!");
 
-            if(paired && parallelAlign)
+            if(byContig && (twoPass || stream || partitions > 0))
+                throw new UnsupportedOperationException("Cannot deduplicate each reference separately with the two pass, streaming, or partitioned algorithms!");
+
+            if(byContig && (paired || trackClusters))
+                throw new UnsupportedOperationException("Cannot deduplicate each reference separately with paired-end reads or when tagging reads!");
+
+            if(byContig && !(mode.equals("bam") && out.getName().endsWith(".bam")))
+                throw new IllegalArgumentException("Deduplicating each reference separately needs BAM input and output files!");
+
+            if(paired && parallelAlign && !stream)
                 throw new UnsupportedOperationException("Cannot process paired-end reads in parallel!");
 
             if(paired && keepUnmapped)
@@ -217,8 +354,12 @@ public class Main{
 
             d = data.get(parallelData).get(dataStr);
 
+            ParallelAlgorithm largeAlgo = null;
+            Class<? extends Data> largeData = data.get(true).get(dataStr);
+
             try{
                 a = algo.get(parallelData).get(algoStr).getDeclaredConstructor().newInstance();
+                largeAlgo = (ParallelAlgorithm)algo.get(true).get(algoStr).getDeclaredConstructor().newInstance();
                 mAlgo = merge.get(mergeStr).getDeclaredConstructor().newInstance();
             }catch(Exception e){
                 e.printStackTrace();
@@ -226,19 +367,53 @@ public class Main{
 
             if(mode.equals("fastq")){
                 DeduplicateFASTQ dedup = new DeduplicateFASTQ();
-                dedup.deduplicateAndMerge(in, out, a, d, mAlgo, umiLength, k, percentage, 
-                    parallelAlign || quickIO, trackClusters);
+
+                // reads of different lengths are always deduplicated in parallel with --quick-io
+                if(quickIO && !parallelAlign && !parallelData)
+                    threads = Runtime.getRuntime().availableProcessors();
+
+                dedup.setThreads(threads);
+                dedup.setIOThreads(ioThreads);
+
+                if(readKey != null)
+                    dedup.setReadKey(readKey, data.get(true).get(dataStr));
+
+                if(mateIn != null){
+                    dedup.deduplicateAndMergePaired(in, mateIn, out, mateOut, a, d, mAlgo, umiLength, k, percentage,
+                        parallelAlign || quickIO, trackClusters, readPrefix, matePrefix);
+                }else if(exactPartitions > 0){
+                    dedup.deduplicateAndMergeExactPartitioned(in, out, a, d, mAlgo, umiLength, k, percentage,
+                        parallelAlign || quickIO, trackClusters, exactPartitions);
+                }else{
+                    dedup.deduplicateAndMerge(in, out, a, d, mAlgo, umiLength, k, percentage, 
+                        parallelAlign || quickIO, trackClusters);
+                }
             }else if(mode.equals("bam") || mode.equals("sam")){
                 DeduplicateSAM dedup = new DeduplicateSAM();
+                dedup.setThreads(threads);
+                dedup.setIOThreads(ioThreads);
+                dedup.setSpillMates(spillMates);
+
+                if(parallelAlign)
+                    dedup.setLargePositionAlgo(largeAlgo, largeData);
 
                 if(twoPass){
                     dedup.deduplicateAndMergeTwoPass(in, out, a, d, mAlgo, umiLength, k, percentage, umiSeparator, paired, removeUnpaired, removeChimeric, keepUnmapped, trackClusters);
+                }else if(byContig){
+                    dedup.deduplicateAndMergeByContig(in, out, a, d, mAlgo, umiLength, k, percentage, umiSeparator, keepUnmapped);
+                }else if(partitions > 0){
+                    dedup.deduplicateAndMergePartitioned(in, out, a, d, mAlgo, umiLength, k, percentage, parallelAlign, umiSeparator, paired, removeUnpaired, removeChimeric, keepUnmapped, trackClusters, partitions);
+                }else if(stream){
+                    dedup.deduplicateAndMergeStreaming(in, out, a, d, mAlgo, umiLength, k, percentage, umiSeparator, paired, removeUnpaired, removeChimeric, keepUnmapped, trackClusters, streamWindow, parallelAlign ? threads : 1);
                 }else{
                     dedup.deduplicateAndMerge(in, out, a, d, mAlgo, umiLength, k, percentage, parallelAlign, umiSeparator, paired, removeUnpaired, removeChimeric, keepUnmapped, trackClusters);
                 }
             }
 
             System.out.println("UMI collapsing finished in " + ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds!");
+
+            if(metrics != null)
+                Metrics.write(metrics, "deduplicate");
         } finally {
             ByteBufferPool.clear(); // 确保程序结束时清理所有ByteBuffer
         }
@@ -0,0 +1,97 @@
+package umicollapse.util;
+
+import htsjdk.samtools.SAMRecord;
+
+import static umicollapse.util.Utils.HASH_CONST;
+
+public class Alignment implements Comparable{
+    private boolean strand;
+    private int coord;
+    private String ref;
+
+    public Alignment(boolean strand, int coord, String ref){
+        this.strand = strand;
+        this.coord = coord;
+        this.ref = ref.intern();
+    }
+
+    // reads are grouped by their unclipped 5' position, strand, reference, and template length if paired
+    public static Alignment fromRecord(SAMRecord record, boolean paired){
+        if(paired){
+            return new PairedAlignment(
+                    record.getReadNegativeStrandFlag(),
+                    record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
+                    record.getReferenceName(),
+                    record.getInferredInsertSize()
+            );
+        }else{
+            return new Alignment(
+                    record.getReadNegativeStrandFlag(),
+                    record.getReadNegativeStrandFlag() ? record.getUnclippedEnd() : record.getUnclippedStart(),
+                    record.getReferenceName()
+            );
+        }
+    }
+
+    public String getRef(){
+        return ref;
+    }
+
+    public boolean getStrand(){
+        return strand;
+    }
+
+    public int getCoord(){
+        return coord;
+    }
+
+    // last read start coordinate that could still produce this alignment
+    // the unclipped end of a reversed read is never before its start, but the unclipped start
+    // of a forwards read can be up to a window before its start due to clipping
+    public int lastCoord(int window){
+        return strand ? coord : (coord + window);
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(!(o instanceof Alignment))
+            return false;
+
+        Alignment a = (Alignment)o;
+
+        if(this == a)
+            return true;
+
+        if(strand != a.strand)
+            return false;
+
+        if(coord != a.coord)
+            return false;
+
+        if(ref != a.ref) // can directly compare interned strings
+            return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = strand ? 1231 : 1237;
+        hash = hash * HASH_CONST + coord;
+        hash = hash * HASH_CONST + ref.hashCode();
+        return hash;
+    }
+
+    @Override
+    public int compareTo(Object o){
+        Alignment other = (Alignment)o;
+
+        if(strand != other.strand)
+            return Boolean.compare(strand, other.strand);
+
+        if(coord != other.coord)
+            return coord - other.coord;
+
+        return ref.compareTo(other.ref);
+    }
+}
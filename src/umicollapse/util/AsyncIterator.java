@@ -0,0 +1,120 @@
+package umicollapse.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// runs another iterator on a separate thread, handing over batches of items through a bounded queue
+// this lets the producer (like parsing the input) overlap with the consumer
+// a consumer that stops before the end must call close, so the producer does not stay blocked on the full queue
+public class AsyncIterator<T> implements Iterator<T>, AutoCloseable{
+    private static final List<Object> END = Collections.emptyList();
+
+    private final BlockingQueue<List<T>> queue;
+    private final Thread thread;
+    private volatile Throwable exception = null;
+    private volatile boolean closed = false;
+
+    private List<T> batch = new ArrayList<T>();
+    private int idx = 0;
+    private boolean done = false;
+
+    @SuppressWarnings("unchecked")
+    public AsyncIterator(Iterator<T> source, int batchSize, int queueSize, String name){
+        this.queue = new ArrayBlockingQueue<List<T>>(queueSize);
+
+        this.thread = new Thread(() -> {
+            try{
+                List<T> curr = new ArrayList<T>(batchSize);
+
+                while(!closed && source.hasNext()){
+                    curr.add(source.next());
+
+                    if(curr.size() == batchSize){
+                        queue.put(curr);
+                        curr = new ArrayList<T>(batchSize);
+                    }
+                }
+
+                if(!curr.isEmpty())
+                    queue.put(curr);
+            }catch(InterruptedException e){
+                // closed by the consumer
+            }catch(Throwable e){ // including errors like running out of memory, which would otherwise leave the consumer waiting
+                exception = e;
+            }finally{
+                // the consumer always gets the end, unless it already quit
+                if(!closed){
+                    try{
+                        queue.put((List<T>)END);
+                    }catch(InterruptedException e){}
+                }
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public boolean hasNext(){
+        while(idx == batch.size()){
+            if(done)
+                return false;
+
+            try{
+                batch = queue.take();
+                idx = 0;
+            }catch(InterruptedException e){
+                throw new RuntimeException(e);
+            }
+
+            if(batch == END){
+                done = true;
+
+                if(exception instanceof RuntimeException)
+                    throw (RuntimeException)exception;
+                else if(exception instanceof Error)
+                    throw (Error)exception;
+                else if(exception != null)
+                    throw new RuntimeException(exception);
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next(){
+        if(!hasNext())
+            throw new NoSuchElementException();
+
+        return batch.get(idx++);
+    }
+
+    // stops the producer and waits for it to finish
+    @Override
+    public void close(){
+        if(closed)
+            return;
+
+        closed = true;
+        done = true;
+        thread.interrupt();
+
+        try{
+            // keep making room in case the source swallowed the interrupt, so the producer can always finish
+            while(thread.isAlive()){
+                queue.clear();
+                thread.join(10);
+            }
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }
+    }
+}
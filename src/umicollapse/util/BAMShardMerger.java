@@ -0,0 +1,115 @@
+package umicollapse.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+
+// concatenates BAM files with the same header (like the per reference fragments of one input) into one BAM file
+// the compressed BGZF blocks of the reads are copied as they are with FileChannel.transferTo, so no reads are decoded
+// only the header of the first file is kept, and only one EOF block is written at the end
+// the reads that share the last block of the header of a file are the only ones that are compressed again
+public class BAMShardMerger{
+    public static void merge(List<File> shards, File out){
+        try(FileChannel channel = FileChannel.open(out.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            // writes to the same channel position as transferTo, and its own EOF block is never written
+            BlockCompressedOutputStream blocks = new BlockCompressedOutputStream(Channels.newOutputStream(channel), (File)null);
+
+            for(int i = 0; i < shards.size(); i++){
+                File shard = shards.get(i);
+                long end = shard.length();
+
+                if(BlockCompressedInputStream.checkTermination(shard) == BlockCompressedInputStream.FileTermination.HAS_TERMINATOR_BLOCK)
+                    end -= EMPTY_GZIP_BLOCK.length;
+
+                long start;
+
+                try(BlockCompressedInputStream in = new BlockCompressedInputStream(shard)){
+                    ByteArrayOutputStream header = new ByteArrayOutputStream();
+                    copyHeader(in, header);
+
+                    if(i == 0)
+                        blocks.write(header.toByteArray());
+
+                    // the rest of the block that the header ends in
+                    byte[] buf = new byte[1 << 16];
+
+                    while(!in.endOfBlock()){
+                        int n = in.read(buf, 0, Math.min(buf.length, in.available()));
+
+                        if(n < 0)
+                            break;
+
+                        blocks.write(buf, 0, n);
+                    }
+
+                    start = BlockCompressedInputStream.getFileBlock(in.getFilePointer());
+                }
+
+                blocks.flush();
+
+                try(FileChannel src = FileChannel.open(shard.toPath(), StandardOpenOption.READ)){
+                    long pos = start;
+
+                    while(pos < end)
+                        pos += src.transferTo(pos, end - pos, channel);
+                }
+            }
+
+            blocks.flush();
+            channel.write(ByteBuffer.wrap(EMPTY_GZIP_BLOCK));
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // magic, text, and references of the BAM header
+    private static void copyHeader(InputStream in, OutputStream out) throws IOException{
+        copy(in, out, 4);
+        copy(in, out, copyInt(in, out));
+        int numRefs = copyInt(in, out);
+
+        for(int i = 0; i < numRefs; i++){
+            copy(in, out, copyInt(in, out)); // name
+            copy(in, out, 4); // length
+        }
+    }
+
+    private static int copyInt(InputStream in, OutputStream out) throws IOException{
+        byte[] b = readFully(in, 4);
+        out.write(b);
+        return (b[0] & 0xFF) | ((b[1] & 0xFF) << 8) | ((b[2] & 0xFF) << 16) | ((b[3] & 0xFF) << 24);
+    }
+
+    private static void copy(InputStream in, OutputStream out, int n) throws IOException{
+        out.write(readFully(in, n));
+    }
+
+    private static byte[] readFully(InputStream in, int n) throws IOException{
+        byte[] res = new byte[n];
+        int off = 0;
+
+        while(off < n){
+            int r = in.read(res, off, n - off);
+
+            if(r < 0)
+                throw new IOException("Unexpected end of BAM header!");
+
+            off += r;
+        }
+
+        return res;
+    }
+}
@@ -1,93 +1,103 @@
 package umicollapse.util;
 
 import java.util.Arrays;
-import jdk.incubator.vector.LongVector;
-import jdk.incubator.vector.VectorSpecies;
-import jdk.incubator.vector.VectorOperators;
-import java.util.stream.IntStream;
+import java.nio.ByteBuffer;
 
+// the first two chunks are stored in fields, since almost all UMIs fit in them (up to 42 nucleotides)
+// only longer sequences need the extra arrays, so short UMIs are a single small object
 public class BitSet implements Comparable{
     private static final int CHUNK_SIZE = 64;
-    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
-    private static final int VECTOR_LENGTH = SPECIES.length();
+    private static final int INLINE_CHUNKS = 2;
 
-    private long[] bits;
+    private final int length; // number of chunks
+    private long bits0, bits1;
+    private long nBits0, nBits1;
+    private long[] bits; // chunks after the inline chunks
     private long[] nBits;
-    private boolean recalcHash;
-    private int hash;
 
     public BitSet(int length){
-        this.bits = new long[length / CHUNK_SIZE + (length % CHUNK_SIZE == 0 ? 0 : 1)];
-        this.recalcHash = true;
+        this.length = length / CHUNK_SIZE + (length % CHUNK_SIZE == 0 ? 0 : 1);
+
+        if(this.length > INLINE_CHUNKS)
+            this.bits = new long[this.length - INLINE_CHUNKS];
+    }
+
+    private BitSet(BitSet o){
+        this.length = o.length;
+        this.bits0 = o.bits0;
+        this.bits1 = o.bits1;
+        this.nBits0 = o.nBits0;
+        this.nBits1 = o.nBits1;
+        this.bits = o.bits == null ? null : Arrays.copyOf(o.bits, o.bits.length);
+        this.nBits = o.nBits == null ? null : Arrays.copyOf(o.nBits, o.nBits.length);
     }
 
-    private BitSet(long[] bits){
-        this.bits = bits;
-        this.recalcHash = true;
+    private long chunk(int i){
+        return i == 0 ? bits0 : (i == 1 ? bits1 : bits[i - INLINE_CHUNKS]);
     }
 
-    private BitSet(long[] bits, int hash){
-        this.bits = bits;
-        this.recalcHash = false;
-        this.hash = hash;
+    private void setChunk(int i, long v){
+        if(i == 0)
+            bits0 = v;
+        else if(i == 1)
+            bits1 = v;
+        else
+            bits[i - INLINE_CHUNKS] = v;
+    }
+
+    private long nChunk(int i){
+        return i == 0 ? nBits0 : (i == 1 ? nBits1 : (nBits == null ? 0L : nBits[i - INLINE_CHUNKS]));
+    }
+
+    private void setNChunk(int i, long v){
+        if(i == 0){
+            nBits0 = v;
+        }else if(i == 1){
+            nBits1 = v;
+        }else{
+            if(nBits == null)
+                nBits = new long[length - INLINE_CHUNKS];
+
+            nBits[i - INLINE_CHUNKS] = v;
+        }
     }
 
     public boolean get(int idx){
-        return (bits[idx / CHUNK_SIZE] & (1L << (idx % CHUNK_SIZE))) != 0L;
+        return (chunk(idx / CHUNK_SIZE) & (1L << (idx % CHUNK_SIZE))) != 0L;
     }
 
-    // does not set the nBits array, so distance calculations could be wrong if not careful!
+    // does not set the nBits, so distance calculations could be wrong if not careful!
     public void set(int idx, boolean bit){
-        recalcHash = true;
         int i = idx / CHUNK_SIZE;
         int j = idx % CHUNK_SIZE;
-        bits[i] = bit ? (bits[i] | (1L << j)) : (bits[i] & ~(1L << j));
+        long c = chunk(i);
+        setChunk(i, bit ? (c | (1L << j)) : (c & ~(1L << j)));
     }
 
     public void setNBit(int idx, boolean bit){
-        if(nBits == null)
-            nBits = new long[bits.length];
-
         int i = idx / CHUNK_SIZE;
         int j = idx % CHUNK_SIZE;
-        nBits[i] = bit ? (nBits[i] | (1L << j)) : (nBits[i] & ~(1L << j));
+        long c = nChunk(i);
+        setNChunk(i, bit ? (c | (1L << j)) : (c & ~(1L << j)));
     }
 
+    // for short UMIs, this is just XOR and popcount on the inline chunks
     public int bitCountXOR(BitSet o){
-        int res = 0;
-
-        // 向量化处理
-        final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
-        int i = 0;
-        int upperBound = bits.length - (bits.length % SPECIES.length());
-        for(; i < upperBound; i += SPECIES.length()){
-            LongVector v1 = LongVector.fromArray(SPECIES, bits, i);
-            long mask1 = (nBits == null ? 0L : nBits[i]);
-            LongVector m1 = LongVector.broadcast(SPECIES, mask1);
-
-            LongVector v2 = LongVector.fromArray(SPECIES, o.bits, i);
-            long mask2 = (o.nBits == null ? 0L : o.nBits[i]);
-            LongVector m2 = LongVector.broadcast(SPECIES, mask2);
-
-            LongVector xorMask = m1.lanewise(VectorOperators.XOR, m2);
-            LongVector xorBits = v1.lanewise(VectorOperators.XOR, v2);
-            LongVector combined = xorMask.lanewise(VectorOperators.OR, xorBits);
-            LongVector popCombined = combined.lanewise(VectorOperators.BIT_COUNT);
-            long sumCombined = popCombined.reduceLanes(VectorOperators.ADD);
-            LongVector popMask = xorMask.lanewise(VectorOperators.BIT_COUNT);
-            long sumMask = popMask.reduceLanes(VectorOperators.ADD);
-            int count = (int)(sumCombined - sumMask / Read.ENCODING_LENGTH);
-            res += count;
-        }
-
-        // 处理剩余部分
-        for(; i < bits.length; i++){
-            long xor = (nBits == null ? 0L : nBits[i]) ^ (o.nBits == null ? 0L : o.nBits[i]);
-            long combined = (xor | (bits[i] ^ o.bits[i]));
-            res += Long.bitCount(combined) - Long.bitCount(xor) / Read.ENCODING_LENGTH;
+        long xor0 = nBits0 ^ o.nBits0;
+        long xor1 = nBits1 ^ o.nBits1;
+        int res = Long.bitCount(xor0 | (bits0 ^ o.bits0)) + Long.bitCount(xor1 | (bits1 ^ o.bits1));
+        int nCount = Long.bitCount(xor0) + Long.bitCount(xor1);
+
+        if(bits != null){
+            for(int i = 0; i < bits.length; i++){
+                long xor = (nBits == null ? 0L : nBits[i]) ^ (o.nBits == null ? 0L : o.nBits[i]);
+                res += Long.bitCount(xor | (bits[i] ^ o.bits[i]));
+                nCount += Long.bitCount(xor);
+            }
         }
 
-        return res;
+        // differences between undetermined and determined nucleotides only count once
+        return res - nCount / Read.ENCODING_LENGTH;
     }
 
     @Override
@@ -100,76 +110,53 @@ public class BitSet implements Comparable{
         if(this == o)
             return true;
 
-        if(bits.length != o.bits.length)
-            return false;
-
-        for(int i = 0; i < bits.length; i++){
-            if(bits[i] != o.bits[i])
-                return false;
-        }
-
-        return true;
+        return length == o.length && bits0 == o.bits0 && bits1 == o.bits1 && Arrays.equals(bits, o.bits);
     }
 
     @Override
     public int compareTo(Object o){
         BitSet other = (BitSet)o;
 
-        if(bits.length != other.bits.length)
-            return bits.length - other.bits.length;
+        if(length != other.length)
+            return length - other.length;
+
+        for(int i = 0; i < length; i++){
+            long a = chunk(i);
+            long b = other.chunk(i);
 
-        for(int i = 0; i < bits.length; i++){
-            if(bits[i] != other.bits[i])
-                return Long.compare(bits[i], other.bits[i]);
+            if(a != b)
+                return Long.compare(a, b);
         }
 
         return 0;
     }
 
     public BitSet clone(){
-        if(recalcHash)
-            return new BitSet(Arrays.copyOf(bits, bits.length));
-        else
-            return new BitSet(Arrays.copyOf(bits, bits.length), hash);
+        return new BitSet(this);
     }
 
     @Override
     public int hashCode(){
-        if(recalcHash){
-            long h = 1234L; // same as Java's built-in BitSet hash function
-            int i = 0;
-
-            // 向量化处理
-            for (; i <= bits.length - VECTOR_LENGTH; i += VECTOR_LENGTH) {
-                LongVector v = LongVector.fromArray(SPECIES, bits, i);
-                LongVector multiplier = LongVector.fromArray(SPECIES, 
-                    IntStream.range(i, i + VECTOR_LENGTH)
-                            .mapToLong(j -> j + 1L)
-                            .toArray(), 0);
-                
-                // 向量化乘法和异或
-                LongVector product = v.mul(multiplier);
-                h ^= product.reduceLanes(VectorOperators.XOR);
-            }
-            
-            // 处理剩余元素
-            for (; i < bits.length; i++) {
-                h ^= bits[i] * (i + 1L);
-            }
-
-            hash = (int)((h >> 32) ^ h);
-            recalcHash = false;
+        // same as Java's built-in BitSet hash function
+        // unused inline chunks are zero, so they do not change the hash
+        long h = 1234L;
+        h ^= bits0;
+        h ^= bits1 * 2L;
+
+        if(bits != null){
+            for(int i = 0; i < bits.length; i++)
+                h ^= bits[i] * (i + INLINE_CHUNKS + 1L);
         }
 
-        return hash;
+        return (int)((h >> 32) ^ h);
     }
 
     @Override
     public String toString(){
         StringBuilder res = new StringBuilder();
 
-        for(int i = 0; i < bits.length; i++){
-            String s = Long.toBinaryString(bits[i]);
+        for(int i = 0; i < length; i++){
+            String s = Long.toBinaryString(chunk(i));
             res.append(reverse(s));
             res.append(make('0', CHUNK_SIZE - s.length()));
         }
@@ -195,16 +182,84 @@ public class BitSet implements Comparable{
         return new String(res);
     }
 
-    public void applyEncodingMask(int chunkIdx, long maskClear, long maskSet) {
-        recalcHash = true;
-        bits[chunkIdx] &= maskClear;
-        bits[chunkIdx] |= maskSet;
+    // number of bytes used by write()
+    public int serializedSize(){
+        return 4 + 16 * length;
+    }
+
+    // the chunks and the undetermined nucleotide chunks, for temporary files
+    public void write(ByteBuffer buf){
+        buf.putInt(length);
+
+        for(int i = 0; i < length; i++){
+            buf.putLong(chunk(i));
+            buf.putLong(nChunk(i));
+        }
     }
 
-    public long extractBits(int chunkIdx) {
-        if(chunkIdx < 0 || chunkIdx >= bits.length) {
-            return 0L; // 越界时返回0
+    public static BitSet read(ByteBuffer buf){
+        int chunks = buf.getInt();
+        BitSet res = new BitSet(chunks * CHUNK_SIZE);
+
+        for(int i = 0; i < chunks; i++){
+            res.setChunk(i, buf.getLong());
+            long n = buf.getLong();
+
+            if(n != 0L) // the extra arrays are only allocated if there are undetermined nucleotides
+                res.setNChunk(i, n);
         }
-        return bits[chunkIdx];
+
+        return res;
+    }
+
+    // a copy of numBits bits starting at a bit index, like the encoding of a substring of a sequence
+    public BitSet range(int from, int numBits){
+        BitSet res = new BitSet(numBits);
+
+        for(int i = 0; i < res.length; i++){
+            int start = from + i * CHUNK_SIZE;
+            int end = Math.min(CHUNK_SIZE, numBits - i * CHUNK_SIZE);
+            long mask = end == CHUNK_SIZE ? -1L : (1L << end) - 1L;
+            res.setChunk(i, bitsAt(start, false) & mask);
+            long n = bitsAt(start, true) & mask;
+
+            if(n != 0L)
+                res.setNChunk(i, n);
+        }
+
+        return res;
+    }
+
+    // the 64 bits (or undetermined nucleotide bits) starting at a bit index
+    private long bitsAt(int start, boolean n){
+        int c = start / CHUNK_SIZE;
+        int offset = start % CHUNK_SIZE;
+        long lo = c < length ? (n ? nChunk(c) : chunk(c)) : 0L;
+
+        if(offset == 0)
+            return lo;
+
+        long hi = c + 1 < length ? (n ? nChunk(c + 1) : chunk(c + 1)) : 0L;
+        return (lo >>> offset) | (hi << (CHUNK_SIZE - offset));
+    }
+
+    // used for encoding sequences straight into the chunks
+    void orChunk(int chunkIdx, long v){
+        setChunk(chunkIdx, chunk(chunkIdx) | v);
+    }
+
+    void orNChunk(int chunkIdx, long v){
+        setNChunk(chunkIdx, nChunk(chunkIdx) | v);
+    }
+
+    public void applyEncodingMask(int chunkIdx, long maskClear, long maskSet){
+        setChunk(chunkIdx, (chunk(chunkIdx) & maskClear) | maskSet);
+    }
+
+    public long extractBits(int chunkIdx){
+        if(chunkIdx < 0 || chunkIdx >= length)
+            return 0L;
+
+        return chunk(chunkIdx);
     }
 }
@@ -2,6 +2,7 @@ package umicollapse.util;
 
 import java.util.Arrays;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import htsjdk.samtools.fastq.FastqRecord;
 
@@ -17,10 +18,13 @@ public class FASTQRead extends Read{
     private String desc;
     private BitSet seq;
     private volatile byte[] qual;
-    private ByteBuffer qualBuffer;
     private volatile int avgQual = -1;
     private String cacheKey;
 
+    // for reads that stay in a mapped input file until they are written
+    private ByteBuffer source;
+    private int descStart, descEnd, qualStart, qualEnd;
+
     public FASTQRead(String desc, String umi, String seq, String qual){
         this.desc = desc;
         this.seq = toBitSet(umi.toUpperCase() + seq.toUpperCase());
@@ -36,17 +40,42 @@ public class FASTQRead extends Read{
         this(desc, "", seq, qual);
     }
 
+    // the sequence is encoded and the qualities are averaged straight from the bytes of the slices of the source,
+    // and the description and the qualities are only copied out of the source when the read is written
+    public FASTQRead(ByteBuffer source, int descStart, int descEnd, int seqStart, int seqEnd, int qualStart, int qualEnd){
+        this.source = source;
+        this.descStart = descStart;
+        this.descEnd = descEnd;
+        this.qualStart = qualStart;
+        this.qualEnd = qualEnd;
+        this.seq = toBitSet(Utils.asCharSequence(source), seqStart, seqEnd);
+
+        int sum = 0;
+
+        for(int i = qualStart; i < qualEnd; i++)
+            sum += source.get(i) - '!';
+
+        this.avgQual = qualEnd > qualStart ? sum / (qualEnd - qualStart) : 0;
+    }
+
     @Override
     protected void lazyLoad() {
+        if (source != null) {
+            byte[] bytes = new byte[descEnd - descStart];
+            source.get(descStart, bytes);
+            desc = new String(bytes, StandardCharsets.US_ASCII);
+            qual = new byte[qualEnd - qualStart];
+            source.get(qualStart, qual);
+
+            for (int i = 0; i < qual.length; i++)
+                qual[i] -= '!';
+
+            source = null;
+            return;
+        }
+
         if (quickIOEnabled) {
-            qual = qualityCache.computeIfAbsent(cacheKey, k -> {
-                ByteBuffer buf = ByteBufferPool.acquire();
-                byte[] result = toPhred33ByteArray(k);
-                buf.put(result);
-                buf.flip();
-                qualBuffer = buf;
-                return result;
-            });
+            qual = qualityCache.computeIfAbsent(cacheKey, k -> toPhred33ByteArray(k));
         } else {
             qual = toPhred33ByteArray(cacheKey);
         }
@@ -99,12 +128,17 @@ public class FASTQRead extends Read{
 
     @Override
     public int getAvgQual(){
+        if(avgQual == -1) // already known for reads from a mapped file
+            ensureLoaded();
+
         return avgQual;
     }
 
     @Override
     public boolean equals(Object o){
         FASTQRead r = (FASTQRead)o;
+        ensureLoaded();
+        r.ensureLoaded();
 
         if(!seq.equals(r.seq))
             return false;
@@ -118,7 +152,14 @@ public class FASTQRead extends Read{
         return true;
     }
 
+    // only the sequence, so the description and the qualities do not have to be loaded
+    @Override
+    public int hashCode(){
+        return seq.hashCode();
+    }
+
     public FastqRecord toFASTQRecord(int length, int umiLength){
+        ensureLoaded();
         return new FastqRecord(desc, Utils.toString(seq, length).substring(umiLength), "", Utils.toPhred33String(qual).substring(umiLength));
     }
 }
@@ -0,0 +1,188 @@
+package umicollapse.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+
+import static umicollapse.util.Utils.HASH_CONST;
+
+// holds the reversed reads of pairs until it is known whether their forwards reads are kept
+// the reversed reads are captured while the input is read, so the input never has to be read again to find them
+// they are either kept in memory, or spilled to a temporary BAM file that is read once at the end
+public class MateBuffer{
+    private SAMFileWriter out;
+
+    // in memory: reversed reads grouped by the reference of their forwards reads
+    private Map<String, Map<ReversedRead, SAMRecord>> mates;
+    private Set<String> finishedRefs;
+
+    // spilled: reversed reads are written to a temporary file
+    private File spillFile;
+    private SAMFileWriter spill;
+
+    // forwards reads that are kept, but their reversed reads have not been seen yet
+    private Set<ReversedRead> wanted;
+
+    public MateBuffer(SAMFileWriter out, SAMFileHeader header, boolean spillToDisk){
+        this.out = out;
+        this.wanted = new HashSet<ReversedRead>();
+
+        if(spillToDisk){
+            try{
+                this.spillFile = File.createTempFile("umicollapse_mates", ".bam");
+                this.spillFile.deleteOnExit();
+            }catch(IOException e){
+                throw new RuntimeIOException(e);
+            }
+
+            SAMFileHeader spillHeader = header.clone();
+            spillHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+            this.spill = new SAMFileWriterFactory().setCompressionLevel(1).makeBAMWriter(spillHeader, true, spillFile);
+        }else{
+            this.mates = new HashMap<String, Map<ReversedRead, SAMRecord>>();
+            this.finishedRefs = new HashSet<String>();
+        }
+    }
+
+    // a mapped reversed read with a mapped forwards read
+    public void addMate(SAMRecord record){
+        ReversedRead read = new ReversedRead(record.getReadName(), record.getReferenceName(), record.getAlignmentStart());
+
+        if(spill != null){
+            spill.addAlignment(record);
+            return;
+        }
+
+        if(wanted.remove(read)){
+            out.addAlignment(record);
+            return;
+        }
+
+        // the forwards read was already written or removed
+        if(finishedRefs.contains(record.getMateReferenceName()))
+            return;
+
+        String ref = record.getMateReferenceName();
+
+        if(!mates.containsKey(ref))
+            mates.put(ref, new HashMap<ReversedRead, SAMRecord>());
+
+        mates.get(ref).put(read, record);
+    }
+
+    // a forwards read that is written, so its reversed read must also be written
+    public void keep(SAMRecord record){
+        ReversedRead read = new ReversedRead(record.getReadName(), record.getMateReferenceName(), record.getMateAlignmentStart());
+
+        if(spill == null){
+            Map<ReversedRead, SAMRecord> m = mates.get(record.getReferenceName());
+            SAMRecord mate = m == null ? null : m.remove(read);
+
+            if(mate != null){
+                out.addAlignment(mate);
+                return;
+            }
+        }
+
+        wanted.add(read);
+    }
+
+    // all forwards reads on this reference are written, so the unused reversed reads can be dropped
+    public void finishRef(String ref){
+        if(spill == null){
+            mates.remove(ref);
+            finishedRefs.add(ref);
+        }
+    }
+
+    public void close(){
+        if(spill == null)
+            return;
+
+        spill.close();
+
+        SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(spillFile);
+
+        for(SAMRecord record : reader){
+            ReversedRead read = new ReversedRead(record.getReadName(), record.getReferenceName(), record.getAlignmentStart());
+
+            if(wanted.remove(read))
+                out.addAlignment(record);
+        }
+
+        try{
+            reader.close();
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+
+        spillFile.delete();
+    }
+
+    // drops the reversed reads without writing them, for when the output is abandoned
+    public void abort(){
+        if(spill == null)
+            return;
+
+        try{
+            spill.close();
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+
+        spillFile.delete();
+    }
+
+    private static class ReversedRead{
+        private String name, ref;
+        private int coord;
+
+        public ReversedRead(String name, String ref, int coord){
+            this.name = name;
+            this.ref = ref.intern();
+            this.coord = coord;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof ReversedRead))
+                return false;
+
+            ReversedRead a = (ReversedRead)o;
+
+            if(this == a)
+                return true;
+
+            if(ref != a.ref)
+                return false;
+
+            if(coord != a.coord)
+                return false;
+
+            if(!name.equals(a.name))
+                return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode(){
+            int hash = name.hashCode();
+            hash = hash * HASH_CONST + ref.hashCode();
+            hash = hash * HASH_CONST + coord;
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package umicollapse.util;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.FileNotFoundException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import htsjdk.samtools.util.RuntimeIOException;
+
+// metrics of a run (--metrics), which are written to a JSON file if the file name ends in .json, or a TSV file otherwise
+// nothing is counted unless metrics are enabled, so the counters on hot paths (like umiDist) only check a flag
+// the phases are the wall times between the calls to phase(), and the last phase ends when the metrics are written
+public class Metrics{
+    private static final int HISTOGRAM_BUCKETS = 33;
+
+    private static boolean enabled = false;
+    private static final LongAdder distCalls = new LongAdder();
+    // set when a data structure that finds UMIs without computing distances (like the trie) is used, so the
+    // distance computations are incomplete and written as null
+    private static volatile boolean distUncounted = false;
+    private static final LongAdder queries = new LongAdder();
+    // number of alignment positions (or read lengths in FASTQ mode) by the power of two of their number of unique UMIs
+    private static final AtomicLongArray umiCounts = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+    private static long startTime, phaseStart;
+    private static long gcTimeStart, gcCountStart;
+    private static long inputReads = -1L;
+
+    public static void enable(){
+        enabled = true;
+        startTime = System.nanoTime();
+        phaseStart = startTime;
+        gcTimeStart = gcTime();
+        gcCountStart = gcCount();
+
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    public static void countDist(){
+        if(enabled)
+            distCalls.increment();
+    }
+
+    public static void distUncounted(){
+        if(enabled)
+            distUncounted = true;
+    }
+
+    // calls to near or removeNear on a data structure
+    public static void countQueries(long n){
+        if(enabled)
+            queries.add(n);
+    }
+
+    public static void recordUMICount(int n){
+        if(enabled)
+            umiCounts.incrementAndGet(32 - Integer.numberOfLeadingZeros(n));
+    }
+
+    public static void setInputReads(long n){
+        if(enabled)
+            inputReads = n;
+    }
+
+    // ends the current phase, which is named after what was done in it
+    public static synchronized void phase(String name){
+        if(!enabled)
+            return;
+
+        long now = System.nanoTime();
+        phases.merge(name, now - phaseStart, Long::sum);
+        phaseStart = now;
+    }
+
+    public static synchronized void write(File file, String lastPhase){
+        phase(lastPhase);
+
+        Map<String, Object> res = new LinkedHashMap<>();
+        double total = (System.nanoTime() - startTime) / 1e9;
+        res.put("total_seconds", total);
+
+        for(Map.Entry<String, Long> e : phases.entrySet())
+            res.put("phase_seconds." + e.getKey(), e.getValue() / 1e9);
+
+        if(inputReads >= 0L){
+            res.put("input_reads", inputReads);
+            res.put("reads_per_second", inputReads / total);
+        }
+
+        // the same keys are written either way, so the metrics of different runs can be compared
+        res.put("umi_distance_calls_counted", !distUncounted);
+        res.put("umi_distance_calls", distUncounted ? null : distCalls.sum());
+        res.put("umi_distance_calls_per_query", distUncounted ? null : (queries.sum() == 0L ? 0.0 : (double)distCalls.sum() / queries.sum()));
+
+        res.put("data_structure_queries", queries.sum());
+
+        for(int i = 0; i < HISTOGRAM_BUCKETS; i++){
+            if(umiCounts.get(i) > 0L)
+                res.put("umi_count_histogram." + bucketName(i), umiCounts.get(i));
+        }
+
+        long peakHeap = 0L;
+
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        res.put("peak_heap_bytes", peakHeap); // sum of the peaks of each heap pool, so an upper bound
+        res.put("gc_seconds", (gcTime() - gcTimeStart) / 1e3);
+        res.put("gc_count", gcCount() - gcCountStart);
+
+        try(PrintWriter out = new PrintWriter(file)){
+            if(file.getName().endsWith(".json")){
+                out.println("{");
+                int i = 0;
+
+                for(Map.Entry<String, Object> e : res.entrySet()){
+                    out.print("  \"" + e.getKey() + "\": " + e.getValue());
+                    out.println(++i < res.size() ? "," : "");
+                }
+
+                out.println("}");
+            }else{
+                out.println("metric\tvalue");
+
+                for(Map.Entry<String, Object> e : res.entrySet())
+                    out.println(e.getKey() + "\t" + (e.getValue() == null ? "NA" : e.getValue()));
+            }
+        }catch(FileNotFoundException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // the range of UMI counts in a bucket of the histogram
+    private static String bucketName(int bucket){
+        if(bucket <= 1)
+            return String.valueOf(bucket);
+
+        return (1L << (bucket - 1)) + "-" + ((1L << bucket) - 1L);
+    }
+
+    private static long gcTime(){
+        long res = 0L;
+
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            res += Math.max(gc.getCollectionTime(), 0L);
+
+        return res;
+    }
+
+    private static long gcCount(){
+        long res = 0L;
+
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            res += Math.max(gc.getCollectionCount(), 0L);
+
+        return res;
+    }
+}
@@ -0,0 +1,160 @@
+package umicollapse.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// runs tasks on a pool and hands their results to a sink on a dedicated thread, in the order they were submitted
+// without a pool, every task is run and written right away on the calling thread
+// a caller that fails before close must call abort, so the writer thread does not wait forever
+public class OrderedWriter<T>{
+    private static final CompletableFuture<Object> END = CompletableFuture.completedFuture(null);
+
+    private final ExecutorService pool;
+    private final Consumer<T> sink;
+    private final BlockingQueue<Future<T>> queue;
+    private final Thread thread;
+    private volatile Throwable exception = null;
+    private volatile boolean aborted = false;
+
+    @SuppressWarnings("unchecked")
+    public OrderedWriter(ExecutorService pool, int queueSize, Consumer<T> sink, String name){
+        this.pool = pool;
+        this.sink = sink;
+
+        if(pool == null){
+            this.queue = null;
+            this.thread = null;
+            return;
+        }
+
+        this.queue = new ArrayBlockingQueue<Future<T>>(queueSize);
+        this.thread = new Thread(() -> {
+            try{
+                Future<T> f;
+
+                // keep draining after an error so the producer never blocks on a full queue
+                while((f = queue.take()) != (Future<T>)(Future<?>)END){
+                    if(exception != null)
+                        continue;
+
+                    try{
+                        sink.accept(f.get());
+                    }catch(ExecutionException e){
+                        exception = e.getCause();
+                    }catch(InterruptedException e){
+                        throw e;
+                    }catch(Throwable e){ // including errors like running out of memory, so the thread keeps draining
+                        exception = e;
+                    }
+                }
+            }catch(InterruptedException e){ // aborted
+                if(exception == null)
+                    exception = e;
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void submit(Callable<T> task){
+        checkException();
+
+        if(pool == null){
+            try{
+                sink.accept(task.call());
+            }catch(RuntimeException e){
+                throw e;
+            }catch(Exception e){
+                throw new RuntimeException(e);
+            }
+
+            return;
+        }
+
+        put(pool.submit(task));
+    }
+
+    // an item that is already computed, but must still be written in order
+    public void add(T item){
+        checkException();
+
+        if(pool == null)
+            sink.accept(item);
+        else
+            put(CompletableFuture.completedFuture(item));
+    }
+
+    // a result that is computed elsewhere, which is written once it is done and everything before it is written
+    public void add(Future<T> result){
+        checkException();
+
+        if(pool == null){
+            try{
+                sink.accept(result.get());
+            }catch(InterruptedException e){
+                throw new RuntimeException(e);
+            }catch(ExecutionException e){
+                throw new RuntimeException(e.getCause());
+            }
+        }else{
+            put(result);
+        }
+    }
+
+    // waits until everything is written
+    @SuppressWarnings("unchecked")
+    public void close(){
+        if(pool != null){
+            put((Future<T>)(Future<?>)END);
+
+            try{
+                thread.join();
+            }catch(InterruptedException e){
+                throw new RuntimeException(e);
+            }
+        }
+
+        checkException();
+    }
+
+    // stops the writer thread after a failure elsewhere, without waiting for or writing the rest of the results
+    public void abort(){
+        if(pool == null || aborted)
+            return;
+
+        aborted = true;
+        thread.interrupt();
+
+        try{
+            thread.join();
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void put(Future<T> f){
+        if(aborted)
+            return;
+
+        try{
+            queue.put(f);
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkException(){
+        if(exception instanceof RuntimeException)
+            throw (RuntimeException)exception;
+        else if(exception instanceof Error)
+            throw (Error)exception;
+        else if(exception != null)
+            throw new RuntimeException(exception);
+    }
+}
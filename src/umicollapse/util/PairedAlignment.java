@@ -0,0 +1,49 @@
+package umicollapse.util;
+
+import static umicollapse.util.Utils.HASH_CONST;
+
+public class PairedAlignment extends Alignment{
+    private int tlen;
+
+    public PairedAlignment(boolean strand, int coord, String ref, int tlen){
+        super(strand, coord, ref);
+        this.tlen = tlen;
+    }
+
+    public int getTLen(){
+        return tlen;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(!(o instanceof Alignment))
+            return false;
+
+        PairedAlignment a = (PairedAlignment)o;
+
+        if(this == a)
+            return true;
+
+        if(tlen != a.tlen)
+            return false;
+
+        return super.equals(a);
+    }
+
+    @Override
+    public int hashCode(){
+        int hash = super.hashCode();
+        hash = hash * HASH_CONST + tlen;
+        return hash;
+    }
+
+    @Override
+    public int compareTo(Object o){
+        PairedAlignment other = (PairedAlignment)o;
+
+        if(tlen != other.tlen)
+            return Integer.compare(tlen, other.tlen);
+
+        return super.compareTo(other);
+    }
+}
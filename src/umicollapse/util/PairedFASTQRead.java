@@ -0,0 +1,76 @@
+package umicollapse.util;
+
+import htsjdk.samtools.fastq.FastqRecord;
+
+import static umicollapse.util.Utils.HASH_CONST;
+
+// the two mates of a paired-end FASTQ read, which are deduplicated together
+// the sequence that is used for deduplicating is the first bases (readPrefix) of the first mate, followed by the first
+// bases (matePrefix) of the second mate
+public class PairedFASTQRead extends Read{
+    private FASTQRead first, second;
+    private int firstLength, secondLength;
+    private BitSet seq;
+    private int avgQual;
+
+    public PairedFASTQRead(ParallelFastqReader.Record first, ParallelFastqReader.Record second, int readPrefix, int matePrefix){
+        this.first = first.getRead();
+        this.second = second.getRead();
+        this.firstLength = first.getReadLength();
+        this.secondLength = second.getReadLength();
+
+        // the bases of both mates are encoded straight into one bit set
+        int prefix = Math.min(readPrefix, firstLength);
+        int matePrefixLength = Math.min(matePrefix, secondLength);
+        this.seq = new BitSet((prefix + matePrefixLength) * ENCODING_LENGTH);
+        Utils.toBitSet(seq, 0, first.getSeq(), 0, prefix);
+        Utils.toBitSet(seq, prefix, second.getSeq(), 0, matePrefixLength);
+
+        int length = firstLength + secondLength;
+        this.avgQual = length > 0 ? (this.first.getAvgQual() * firstLength + this.second.getAvgQual() * secondLength) / length : 0;
+        this.isLoaded = true;
+    }
+
+    // length of the sequence that is used for deduplicating
+    public static int keyLength(ParallelFastqReader.Record first, ParallelFastqReader.Record second, int readPrefix, int matePrefix){
+        return Math.min(readPrefix, first.getReadLength()) + Math.min(matePrefix, second.getReadLength());
+    }
+
+    @Override
+    public BitSet getUMI(int maxLength){
+        return seq;
+    }
+
+    @Override
+    public int getUMILength(){
+        return -1; // should never be called!
+    }
+
+    @Override
+    public int getAvgQual(){
+        return avgQual;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        PairedFASTQRead r = (PairedFASTQRead)o;
+        return first.equals(r.first) && second.equals(r.second);
+    }
+
+    @Override
+    public int hashCode(){
+        return first.hashCode() * HASH_CONST + second.hashCode();
+    }
+
+    // the UMI is only trimmed from the first mate
+    public FastqRecord toFirstFASTQRecord(int umiLength){
+        return first.toFASTQRecord(firstLength, umiLength);
+    }
+
+    public FastqRecord toSecondFASTQRecord(){
+        return second.toFASTQRecord(secondLength, 0);
+    }
+
+    @Override
+    protected void lazyLoad(){}
+}
@@ -0,0 +1,90 @@
+package umicollapse.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+// BAM writer that compresses BGZF blocks on a worker pool
+// sorting (if the header is not presorted) is still handled by htsjdk
+public class ParallelBAMWriter extends SAMFileWriterImpl{
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private File file;
+    private OutputStream out;
+    private BAMRecordCodec recordCodec;
+
+    public ParallelBAMWriter(SAMFileHeader header, boolean presorted, File file, ExecutorService pool, int level, int queueSize){
+        this.file = file;
+
+        try{
+            this.out = new ParallelBGZFOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20), pool, level, queueSize);
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+
+        setSortOrder(header.getSortOrder(), presorted);
+        setHeader(header);
+    }
+
+    @Override
+    protected void writeHeader(SAMFileHeader header){
+        StringWriter text = new StringWriter();
+        new SAMTextHeaderCodec().encode(text, header);
+        writeBinaryHeader(text.toString(), header);
+    }
+
+    // deprecated in htsjdk, and not called since the header is written from the SAMFileHeader above,
+    // but the text is still written with the binary references of the header that was set
+    @Deprecated
+    @Override
+    protected void writeHeader(String textHeader){
+        writeBinaryHeader(textHeader, getFileHeader());
+    }
+
+    private void writeBinaryHeader(String text, SAMFileHeader header){
+        BinaryCodec codec = new BinaryCodec(out);
+        codec.writeBytes(BAM_MAGIC);
+        codec.writeString(text, true, false);
+        codec.writeInt(header.getSequenceDictionary().size());
+
+        for(SAMSequenceRecord s : header.getSequenceDictionary().getSequences()){
+            codec.writeString(s.getSequenceName(), true, true);
+            codec.writeInt(s.getSequenceLength());
+        }
+
+        recordCodec = new BAMRecordCodec(header);
+        recordCodec.setOutputStream(out, getFilename());
+    }
+
+    @Override
+    protected void writeAlignment(SAMRecord record){
+        recordCodec.encode(record);
+    }
+
+    @Override
+    protected void finish(){
+        try{
+            out.close();
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    @Override
+    protected String getFilename(){
+        return file.getPath();
+    }
+}
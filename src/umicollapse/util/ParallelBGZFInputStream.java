@@ -0,0 +1,169 @@
+package umicollapse.util;
+
+import java.io.InputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.*;
+
+// reads BGZF blocks that are inflated on a worker pool
+// a separate reader thread reads the compressed blocks ahead of the caller, up to the size of the queue
+public class ParallelBGZFInputStream extends InputStream{
+    private static final CompletableFuture<byte[]> END = CompletableFuture.completedFuture(null);
+
+    private final DataInputStream in;
+    private final BlockingQueue<Future<byte[]>> queue;
+    private final Thread readerThread;
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private volatile boolean closed = false;
+
+    private byte[] buf = new byte[0];
+    private int pos = 0;
+    private boolean done = false;
+
+    public ParallelBGZFInputStream(InputStream in, ExecutorService pool, int queueSize){
+        this.in = new DataInputStream(in);
+        this.queue = new ArrayBlockingQueue<Future<byte[]>>(queueSize);
+
+        this.readerThread = new Thread(() -> {
+            try{
+                byte[] block;
+
+                while(!closed && (block = readBlock()) != null){
+                    final byte[] b = block;
+                    queue.put(pool.submit(() -> decompress(b)));
+                }
+
+                queue.put(END);
+            }catch(IOException e){
+                CompletableFuture<byte[]> f = new CompletableFuture<>();
+                f.completeExceptionally(e);
+
+                try{
+                    queue.put(f);
+                }catch(InterruptedException ex){}
+            }catch(InterruptedException e){}
+        }, "bgzf-reader");
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    @Override
+    public int read() throws IOException{
+        if(!fill())
+            return -1;
+
+        return buf[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+        if(len == 0)
+            return 0;
+
+        if(!fill())
+            return -1;
+
+        int n = Math.min(len, buf.length - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available(){
+        return buf.length - pos;
+    }
+
+    @Override
+    public void close() throws IOException{
+        closed = true;
+        readerThread.interrupt();
+        in.close();
+    }
+
+    // skips over empty blocks, like the EOF marker
+    private boolean fill() throws IOException{
+        while(pos == buf.length){
+            if(done)
+                return false;
+
+            try{
+                Future<byte[]> f = queue.take();
+
+                if(f == END){
+                    done = true;
+                    return false;
+                }
+
+                buf = f.get();
+                pos = 0;
+            }catch(InterruptedException e){
+                throw new IOException(e);
+            }catch(ExecutionException e){
+                throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        return true;
+    }
+
+    // returns the whole compressed block, or null at the end of the stream
+    private byte[] readBlock() throws IOException{
+        byte[] header = new byte[BLOCK_HEADER_LENGTH];
+        int first = in.read();
+
+        if(first == -1)
+            return null;
+
+        header[0] = (byte)first;
+
+        try{
+            in.readFully(header, 1, BLOCK_HEADER_LENGTH - 1);
+        }catch(EOFException e){
+            throw new IOException("Truncated BGZF block header!");
+        }
+
+        if(header[0] != GZIP_ID1 || header[1] != (byte)GZIP_ID2 || (header[3] & GZIP_FLG) == 0
+                || header[12] != BGZF_ID1 || header[13] != BGZF_ID2)
+            throw new IOException("The input is not in the BGZF format!");
+
+        int blockSize = ((header[BLOCK_LENGTH_OFFSET] & 0xFF) | ((header[BLOCK_LENGTH_OFFSET + 1] & 0xFF) << 8)) + 1;
+        byte[] block = new byte[blockSize];
+        System.arraycopy(header, 0, block, 0, BLOCK_HEADER_LENGTH);
+        in.readFully(block, BLOCK_HEADER_LENGTH, blockSize - BLOCK_HEADER_LENGTH);
+        return block;
+    }
+
+    private byte[] decompress(byte[] block) throws IOException{
+        int footer = block.length - BLOCK_FOOTER_LENGTH;
+        int size = (block[footer + 4] & 0xFF) | ((block[footer + 5] & 0xFF) << 8)
+            | ((block[footer + 6] & 0xFF) << 16) | ((block[footer + 7] & 0xFF) << 24);
+        byte[] res = new byte[size];
+
+        if(size == 0)
+            return res;
+
+        Inflater i = inflater.get();
+        i.reset();
+        i.setInput(block, BLOCK_HEADER_LENGTH, footer - BLOCK_HEADER_LENGTH);
+
+        try{
+            if(i.inflate(res) != size)
+                throw new IOException("Corrupt BGZF block!");
+        }catch(DataFormatException e){
+            throw new IOException(e);
+        }
+
+        return res;
+    }
+}
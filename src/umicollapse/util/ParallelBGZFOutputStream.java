@@ -0,0 +1,215 @@
+package umicollapse.util;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.*;
+
+// writes BGZF blocks that are deflated on a worker pool
+// a separate writer thread writes the compressed blocks in order, so the caller only blocks when the queue is full
+public class ParallelBGZFOutputStream extends OutputStream{
+    private static final CompletableFuture<byte[]> END = CompletableFuture.completedFuture(null);
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final int level;
+    private final BlockingQueue<Future<byte[]>> queue;
+    private final Thread writerThread;
+    private final ThreadLocal<Deflater> deflater;
+    private volatile IOException writeException = null;
+
+    private byte[] buf = new byte[DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+    private int len = 0;
+    private boolean closed = false;
+
+    public ParallelBGZFOutputStream(OutputStream out, ExecutorService pool, int level, int queueSize){
+        this.out = out;
+        this.pool = pool;
+        this.level = level;
+        this.queue = new ArrayBlockingQueue<Future<byte[]>>(queueSize);
+        this.deflater = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+
+        this.writerThread = new Thread(() -> {
+            try{
+                Future<byte[]> f;
+
+                // keep draining after an error so the caller never blocks on a full queue
+                while((f = queue.take()) != END){
+                    if(writeException != null)
+                        continue;
+
+                    try{
+                        out.write(f.get());
+                    }catch(ExecutionException e){
+                        writeException = new IOException(e.getCause());
+                    }catch(IOException e){
+                        writeException = e;
+                    }
+                }
+            }catch(InterruptedException e){
+                writeException = new IOException(e);
+            }
+        }, "bgzf-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException{
+        buf[len++] = (byte)b;
+
+        if(len == buf.length)
+            submit();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int n) throws IOException{
+        while(n > 0){
+            int l = Math.min(n, buf.length - len);
+            System.arraycopy(b, off, buf, len, l);
+            len += l;
+            off += l;
+            n -= l;
+
+            if(len == buf.length)
+                submit();
+        }
+    }
+
+    // only flushes full blocks, so that block sizes stay the same regardless of how the stream is used
+    @Override
+    public void flush() throws IOException{
+        checkException();
+    }
+
+    @Override
+    public void close() throws IOException{
+        if(closed)
+            return;
+
+        closed = true;
+        boolean finished = false;
+
+        try{
+            if(len > 0)
+                submit();
+
+            queue.put(END);
+            writerThread.join();
+            finished = true;
+        }catch(InterruptedException e){
+            throw new IOException(e);
+        }finally{
+            if(!finished)
+                abort();
+        }
+
+        checkException();
+        out.write(EMPTY_GZIP_BLOCK);
+        out.close();
+    }
+
+    // stops the writer thread without writing the rest of the blocks, like when the caller is interrupted while closing
+    // the writer thread can be waiting for a block that is never compressed, if the pool was stopped
+    private void abort(){
+        boolean interrupted = false;
+        writerThread.interrupt();
+
+        while(writerThread.isAlive()){
+            try{
+                writerThread.join();
+            }catch(InterruptedException e){
+                interrupted = true;
+            }
+        }
+
+        try{
+            out.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void submit() throws IOException{
+        checkException();
+
+        final byte[] block = buf;
+        final int blockLen = len;
+        buf = new byte[DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+        len = 0;
+
+        try{
+            queue.put(pool.submit(() -> compress(block, blockLen)));
+        }catch(InterruptedException e){
+            throw new IOException(e);
+        }
+    }
+
+    private void checkException() throws IOException{
+        if(writeException != null)
+            throw writeException;
+    }
+
+    private byte[] compress(byte[] block, int blockLen){
+        byte[] res = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+        Deflater d = deflater.get();
+        d.reset();
+        d.setInput(block, 0, blockLen);
+        d.finish();
+        int compressedLen = d.deflate(res, BLOCK_HEADER_LENGTH, res.length - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH);
+
+        if(!d.finished()){ // incompressible data, so store it without compressing instead
+            Deflater noCompression = new Deflater(Deflater.NO_COMPRESSION, true);
+            noCompression.setInput(block, 0, blockLen);
+            noCompression.finish();
+            compressedLen = noCompression.deflate(res, BLOCK_HEADER_LENGTH, res.length - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH);
+            noCompression.end();
+        }
+
+        int blockSize = BLOCK_HEADER_LENGTH + compressedLen + BLOCK_FOOTER_LENGTH;
+
+        res[0] = GZIP_ID1;
+        res[1] = (byte)GZIP_ID2;
+        res[2] = GZIP_CM_DEFLATE;
+        res[3] = GZIP_FLG;
+        // modification time is left as zero
+        res[8] = GZIP_XFL;
+        res[9] = (byte)GZIP_OS_UNKNOWN;
+        putShort(res, 10, GZIP_XLEN);
+        res[12] = BGZF_ID1;
+        res[13] = BGZF_ID2;
+        putShort(res, 14, BGZF_LEN);
+        putShort(res, BLOCK_LENGTH_OFFSET, blockSize - 1);
+
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, blockLen);
+        putInt(res, blockSize - BLOCK_FOOTER_LENGTH, (int)crc.getValue());
+        putInt(res, blockSize - BLOCK_FOOTER_LENGTH + 4, blockLen);
+
+        return Arrays.copyOf(res, blockSize);
+    }
+
+    private static void putShort(byte[] b, int idx, int v){
+        b[idx] = (byte)v;
+        b[idx + 1] = (byte)(v >>> 8);
+    }
+
+    private static void putInt(byte[] b, int idx, int v){
+        b[idx] = (byte)v;
+        b[idx + 1] = (byte)(v >>> 8);
+        b[idx + 2] = (byte)(v >>> 16);
+        b[idx + 3] = (byte)(v >>> 24);
+    }
+}
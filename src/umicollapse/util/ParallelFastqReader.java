@@ -0,0 +1,464 @@
+package umicollapse.util;
+
+import htsjdk.samtools.fastq.FastqRecord;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+// reads a FASTQ file in chunks that are split at record boundaries, and the chunks are parsed in parallel
+// (on the pool of the ordered writer) into reads, but each chunk is handed to the consumer in order
+// uncompressed files are mapped into memory, instead of being read line by line into strings, and the reads point
+// into the mapped chunks
+// gzip files are decompressed on a background thread that hands over the chunks, and BGZF blocks are inflated on
+// the I/O pool if there is one
+// records must have four lines, like with htsjdk's reader
+public class ParallelFastqReader{
+    private static final int CHUNK_SIZE = 1 << 26;
+    private static final int STREAM_CHUNK_SIZE = 1 << 23;
+    private static final int STREAM_QUEUE_SIZE = 2;
+    private static final int SYNC_WINDOW = 1 << 16;
+
+    private File file;
+    private ExecutorService ioPool;
+    private int ioQueueSize;
+
+    // the I/O pool can be null
+    public ParallelFastqReader(File file, ExecutorService ioPool, int ioQueueSize){
+        this.file = file;
+        this.ioPool = ioPool;
+        this.ioQueueSize = ioQueueSize;
+    }
+
+    // the parsed chunks are handed to the consumer on the thread of an ordered writer, so one chunk at a time
+    // without a pool, everything is parsed and consumed on the calling thread
+    public void read(ExecutorService pool, int queueSize, Consumer<List<Record>> consumer){
+        if(isGzip(file))
+            readCompressed(pool, queueSize, consumer);
+        else
+            readMapped(pool, queueSize, consumer);
+    }
+
+    // reads two files in lockstep, like the two mates of paired-end reads, and hands the records to the consumer in pairs
+    // each file is read on its own thread (and parsed on the pool), and the consumer runs on the calling thread
+    public static void readPaired(ParallelFastqReader first, ParallelFastqReader second, ExecutorService pool, int queueSize, BiConsumer<Record, Record> consumer){
+        // both readers are stopped if the other file or the consumer fails
+        try(ChunkQueue firstChunks = new ChunkQueue(first, pool, queueSize, "fastq-reader-1");
+                ChunkQueue secondChunks = new ChunkQueue(second, pool, queueSize, "fastq-reader-2")){
+            while(firstChunks.hasNext()){
+                if(!secondChunks.hasNext())
+                    throw new IllegalArgumentException("The paired FASTQ files have different numbers of reads!");
+
+                consumer.accept(firstChunks.next(), secondChunks.next());
+            }
+
+            if(secondChunks.hasNext())
+                throw new IllegalArgumentException("The paired FASTQ files have different numbers of reads!");
+        }
+    }
+
+    private void readMapped(ExecutorService pool, int queueSize, Consumer<List<Record>> consumer){
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long size = channel.size();
+            List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+
+            for(long p = CHUNK_SIZE; p < size; p += CHUNK_SIZE){
+                long start = findRecordStart(channel, size, p);
+
+                if(start > bounds.get(bounds.size() - 1)) // a record could be longer than a chunk
+                    bounds.add(start);
+            }
+
+            bounds.add(size);
+
+            OrderedWriter<List<Record>> ordered = new OrderedWriter<List<Record>>(pool, queueSize, consumer, "fastq-reader");
+
+            try{
+                for(int i = 0; i < bounds.size() - 1; i++){
+                    long start = bounds.get(i);
+                    long end = bounds.get(i + 1);
+
+                    if(end - start > Integer.MAX_VALUE)
+                        throw new IllegalArgumentException("FASTQ record is too long!");
+
+                    // the mapping stays valid after the channel is closed
+                    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    ordered.submit(() -> parse(buf, start, false));
+                }
+
+                ordered.close();
+            }catch(IOException | RuntimeException | Error e){
+                ordered.abort();
+                throw e;
+            }
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private void readCompressed(ExecutorService pool, int queueSize, Consumer<List<Record>> consumer){
+        // the decompressor thread is stopped before the input is closed
+        try(InputStream in = openCompressed(); AsyncIterator<ByteBuffer> async = new AsyncIterator<ByteBuffer>(new StreamChunks(in), 1, STREAM_QUEUE_SIZE, "fastq-decompressor")){
+            OrderedWriter<List<Record>> ordered = new OrderedWriter<List<Record>>(pool, queueSize, consumer, "fastq-reader");
+            long offset = 0L;
+
+            try{
+                while(async.hasNext()){
+                    ByteBuffer buf = async.next();
+                    long start = offset;
+                    // the reads are copied out of the chunk, so each chunk can be freed once it is consumed
+                    ordered.submit(() -> parse(buf, start, true));
+                    offset += buf.limit();
+                }
+
+                ordered.close();
+            }catch(RuntimeException | Error e){
+                ordered.abort();
+                throw e;
+            }
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private static boolean isGzip(File file){
+        try(InputStream in = new FileInputStream(file)){
+            return in.read() == 0x1f && in.read() == 0x8b;
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // BGZF files are also valid gzip files, with one gzip member per block
+    private InputStream openCompressed() throws IOException{
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 20);
+
+        if(ioPool != null && BlockCompressedInputStream.isValidFile(in))
+            return new ParallelBGZFInputStream(in, ioPool, ioQueueSize);
+
+        return new GZIPInputStream(in, 1 << 16);
+    }
+
+    // the records of a file that is read on a separate thread, one at a time
+    private static class ChunkQueue implements Iterator<Record>, AutoCloseable{
+        private static final List<Record> END = new ArrayList<Record>();
+
+        private final BlockingQueue<List<Record>> queue;
+        private final Thread thread;
+        private volatile Throwable exception = null;
+        private volatile boolean closed = false;
+        private List<Record> chunk = new ArrayList<Record>();
+        private int idx = 0;
+        private boolean done = false;
+
+        public ChunkQueue(ParallelFastqReader reader, ExecutorService pool, int queueSize, String name){
+            this.queue = new ArrayBlockingQueue<List<Record>>(Math.max(queueSize, 1));
+
+            this.thread = new Thread(() -> {
+                try{
+                    reader.read(pool, queueSize, records -> {
+                        if(closed)
+                            throw new IllegalStateException("The reader was closed!");
+
+                        try{
+                            queue.put(records);
+                        }catch(InterruptedException e){
+                            throw new RuntimeException(e);
+                        }
+                    });
+                }catch(Throwable e){ // including errors, which would otherwise leave the consumer waiting
+                    exception = e;
+                }finally{
+                    if(!closed){
+                        try{
+                            queue.put(END);
+                        }catch(InterruptedException e){}
+                    }
+                }
+            }, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public boolean hasNext(){
+            while(idx == chunk.size()){
+                if(done)
+                    return false;
+
+                try{
+                    chunk = queue.take();
+                }catch(InterruptedException e){
+                    throw new RuntimeException(e);
+                }
+
+                idx = 0;
+
+                if(chunk == END){
+                    done = true;
+
+                    if(exception instanceof RuntimeException)
+                        throw (RuntimeException)exception;
+                    else if(exception instanceof Error)
+                        throw (Error)exception;
+                    else if(exception != null)
+                        throw new RuntimeException(exception);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public Record next(){
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            return chunk.get(idx++);
+        }
+
+        // stops reading and waits for the reader to finish
+        @Override
+        public void close(){
+            if(closed)
+                return;
+
+            closed = true;
+            done = true;
+            thread.interrupt();
+
+            try{
+                // keep making room, since the chunks can be put by the thread of the ordered writer of the reader
+                while(thread.isAlive()){
+                    queue.clear();
+                    thread.join(10);
+                }
+            }catch(InterruptedException e){
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // splits a decompressed stream into chunks that end at record boundaries, by counting lines
+    private static class StreamChunks implements Iterator<ByteBuffer>{
+        private InputStream in;
+        private byte[] carry = new byte[0];
+        private int carryLen = 0;
+        private boolean eof = false;
+
+        public StreamChunks(InputStream in){
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return !eof || carryLen > 0;
+        }
+
+        @Override
+        public ByteBuffer next(){
+            if(!hasNext())
+                throw new NoSuchElementException();
+
+            byte[] buf = Arrays.copyOf(carry, Math.max(STREAM_CHUNK_SIZE, carryLen * 2));
+            int len = carryLen;
+            int cut = 0;
+            int lines = 0;
+            int scanned = 0;
+
+            try{
+                while(true){
+                    while(!eof && len < buf.length){
+                        int n = in.read(buf, len, buf.length - len);
+
+                        if(n < 0)
+                            eof = true;
+                        else
+                            len += n;
+                    }
+
+                    if(eof){
+                        cut = len;
+                        break;
+                    }
+
+                    for(; scanned < len; scanned++){
+                        if(buf[scanned] == '\n' && ++lines % 4 == 0)
+                            cut = scanned + 1;
+                    }
+
+                    if(cut > 0)
+                        break;
+
+                    buf = Arrays.copyOf(buf, buf.length * 2); // a record could be longer than a chunk
+                }
+            }catch(IOException e){
+                throw new RuntimeIOException(e);
+            }
+
+            carryLen = len - cut;
+            carry = Arrays.copyOfRange(buf, cut, len);
+            return ByteBuffer.wrap(buf, 0, cut).slice();
+        }
+    }
+
+    // a record starts at a line that starts with '@', if the line after the next line starts with '+'
+    // quality lines can also start with '@', but the line after the next line is then a sequence line
+    private static long findRecordStart(FileChannel channel, long size, long from) throws IOException{
+        for(long window = SYNC_WINDOW; ; window *= 2){
+            long len = Math.min(window, size - from);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, len);
+            int i = nextLine(buf, 0);
+
+            while(i < buf.limit()){
+                int next = nextLine(buf, i);
+                int nextNext = nextLine(buf, next);
+
+                if(nextNext >= buf.limit())
+                    break;
+
+                if(buf.get(i) == '@' && buf.get(nextNext) == '+')
+                    return from + i;
+
+                i = next;
+            }
+
+            if(from + len == size)
+                return size;
+        }
+    }
+
+    private static List<Record> parse(ByteBuffer buf, long offset, boolean copy){
+        List<Record> res = new ArrayList<>();
+        int pos = 0;
+
+        while(pos < buf.limit()){
+            if(buf.get(pos) == '\n' || buf.get(pos) == '\r'){ // blank lines at the end of the file
+                pos++;
+                continue;
+            }
+
+            if(buf.get(pos) != '@')
+                throw new IllegalArgumentException("Invalid FASTQ record at byte " + (offset + pos) + "!");
+
+            Record r = new Record();
+            r.buf = buf;
+            r.descStart = pos + 1;
+            r.descEnd = lineEnd(buf, pos);
+            r.seqStart = nextLine(buf, pos);
+            r.seqEnd = lineEnd(buf, r.seqStart);
+            int qualHeader = nextLine(buf, r.seqStart);
+
+            if(qualHeader >= buf.limit() || buf.get(qualHeader) != '+')
+                throw new IllegalArgumentException("Invalid FASTQ record at byte " + (offset + pos) + "!");
+
+            r.qualHeaderStart = qualHeader + 1;
+            r.qualHeaderEnd = lineEnd(buf, qualHeader);
+            r.qualStart = nextLine(buf, qualHeader);
+            r.qualEnd = lineEnd(buf, r.qualStart);
+
+            if(r.qualEnd - r.qualStart != r.seqEnd - r.seqStart)
+                throw new IllegalArgumentException("Sequence and quality lengths differ in the FASTQ record at byte " + (offset + pos) + "!");
+
+            r.read = new FASTQRead(buf, r.descStart, r.descEnd, r.seqStart, r.seqEnd, r.qualStart, r.qualEnd);
+
+            if(copy)
+                r.read.ensureLoaded();
+
+            res.add(r);
+            pos = nextLine(buf, r.qualStart);
+        }
+
+        return res;
+    }
+
+    // start of the next line, or the limit if this is the last line
+    private static int nextLine(ByteBuffer buf, int pos){
+        while(pos < buf.limit() && buf.get(pos) != '\n')
+            pos++;
+
+        return Math.min(pos + 1, buf.limit());
+    }
+
+    // end of this line, without the line break
+    private static int lineEnd(ByteBuffer buf, int pos){
+        while(pos < buf.limit() && buf.get(pos) != '\n')
+            pos++;
+
+        if(pos > 0 && pos <= buf.limit() && buf.get(pos - 1) == '\r')
+            pos--;
+
+        return pos;
+    }
+
+    // a record that points into its chunk
+    public static class Record{
+        private ByteBuffer buf;
+        private int descStart, descEnd, seqStart, seqEnd, qualHeaderStart, qualHeaderEnd, qualStart, qualEnd;
+        private FASTQRead read;
+
+        public int getReadLength(){
+            return seqEnd - seqStart;
+        }
+
+        public FASTQRead getRead(){
+            return read;
+        }
+
+        // the sequence, without copying it out of the chunk
+        CharSequence getSeq(){
+            return Utils.asCharSequence(buf.slice(seqStart, seqEnd - seqStart));
+        }
+
+        // hash of the sequence, ignoring case
+        public int getSeqHash(){
+            int h = 0;
+
+            for(int i = seqStart; i < seqEnd; i++)
+                h = 31 * h + Character.toUpperCase((char)buf.get(i));
+
+            return h;
+        }
+
+        // writes the record as it is in the input, followed by a line break
+        public void write(OutputStream out) throws IOException{
+            byte[] bytes = new byte[qualEnd - descStart + 2];
+            buf.get(descStart - 1, bytes, 0, bytes.length - 1);
+            bytes[bytes.length - 1] = '\n';
+            out.write(bytes);
+        }
+
+        // only needed when the whole record is written
+        public FastqRecord toFastqRecord(){
+            return new FastqRecord(string(descStart, descEnd), string(seqStart, seqEnd), string(qualHeaderStart, qualHeaderEnd), string(qualStart, qualEnd));
+        }
+
+        private String string(int start, int end){
+            byte[] bytes = new byte[end - start];
+            buf.get(start, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package umicollapse.util;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BufferedLineReader;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.DataInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+import static htsjdk.samtools.util.BlockCompressedStreamConstants.*;
+
+// reads SAM/BAM records, decompressing BAM files on a worker pool if one is given
+// otherwise (including for SAM files that are compressed with bgzip) this falls back to htsjdk's reader
+public class ParallelSAMReader implements Iterable<SAMRecord>, Closeable{
+    private static final byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+
+    private SamReader reader;
+    private InputStream in;
+    private SAMFileHeader header;
+    private BAMRecordCodec recordCodec;
+    private boolean closed = false;
+
+    public ParallelSAMReader(File file, ExecutorService pool, int queueSize){
+        if(pool == null || !isBAM(file)){
+            this.reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(file);
+            this.header = reader.getFileHeader();
+            return;
+        }
+
+        try{
+            this.in = new ParallelBGZFInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20), pool, queueSize);
+            BinaryCodec codec = new BinaryCodec(in);
+            byte[] magic = new byte[BAM_MAGIC.length];
+            codec.readBytes(magic);
+
+            for(int i = 0; i < magic.length; i++){
+                if(magic[i] != BAM_MAGIC[i])
+                    throw new IOException("The input is not a BAM file!");
+            }
+
+            String text = codec.readString(codec.readInt());
+            int nullIdx = text.indexOf('\0');
+
+            if(nullIdx != -1)
+                text = text.substring(0, nullIdx);
+
+            this.header = new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(text), file.toString());
+            int refCount = codec.readInt();
+            List<SAMSequenceRecord> refs = new ArrayList<>(refCount);
+
+            for(int i = 0; i < refCount; i++){
+                String name = codec.readLengthAndString(true);
+                refs.add(new SAMSequenceRecord(name, codec.readInt()));
+            }
+
+            // the binary references are the ones used by the records
+            if(header.getSequenceDictionary().isEmpty())
+                header.setSequenceDictionary(new SAMSequenceDictionary(refs));
+
+            this.recordCodec = new BAMRecordCodec(header);
+            this.recordCodec.setInputStream(in, file.toString());
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    public SAMFileHeader getFileHeader(){
+        return header;
+    }
+
+    @Override
+    public Iterator<SAMRecord> iterator(){
+        if(reader != null)
+            return reader.iterator();
+
+        return new Iterator<SAMRecord>(){
+            private SAMRecord next = decode();
+
+            @Override
+            public boolean hasNext(){
+                return next != null;
+            }
+
+            @Override
+            public SAMRecord next(){
+                if(next == null)
+                    throw new NoSuchElementException();
+
+                SAMRecord res = next;
+                next = decode();
+                return res;
+            }
+        };
+    }
+
+    private SAMRecord decode(){
+        SAMRecord record = recordCodec.decode();
+
+        if(record != null)
+            record.setValidationStringency(ValidationStringency.SILENT);
+
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException{
+        if(closed)
+            return;
+
+        closed = true;
+
+        if(reader != null)
+            reader.close();
+        else
+            in.close();
+    }
+
+    // bgzipped SAM files are also BGZF, so the decompressed magic is checked too
+    private static boolean isBAM(File file){
+        if(!isBGZF(file))
+            return false;
+
+        try(DataInputStream s = new DataInputStream(new BlockCompressedInputStream(file))){
+            byte[] magic = new byte[BAM_MAGIC.length];
+            s.readFully(magic);
+            return Arrays.equals(magic, BAM_MAGIC);
+        }catch(IOException e){
+            return false;
+        }
+    }
+
+    private static boolean isBGZF(File file){
+        try(InputStream s = new FileInputStream(file)){
+            byte[] b = new byte[BLOCK_HEADER_LENGTH];
+            return s.read(b) == b.length && b[0] == GZIP_ID1 && b[1] == (byte)GZIP_ID2
+                && (b[3] & GZIP_FLG) != 0 && b[12] == BGZF_ID1 && b[13] == BGZF_ID2;
+        }catch(IOException e){
+            return false;
+        }
+    }
+}
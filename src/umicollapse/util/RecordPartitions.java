@@ -0,0 +1,257 @@
+package umicollapse.util;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+// reads that are split into temporary files while the input is read, so each partition can be processed on its own
+// each partition has two files:
+//  - compact entries with only the fields that are needed for deduplicating, which are read back all at once:
+//    strand, coordinate, reference index, template length, mapping quality, average quality, the UMI chunks,
+//    and the offset of the full record in the other file
+//  - full records in the uncompressed BAM record encoding, which are only read back one by one when they are written
+// all of the partitions are written first, and then each partition is read back and deleted
+public class RecordPartitions implements AutoCloseable{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    // strand, coordinate, reference index, template length, mapping quality, average quality, UMI length, record offset
+    private static final int FIXED_ENTRY_SIZE = 1 + 4 + 4 + 4 + 1 + 4 + 2 + 8;
+
+    private SAMFileHeader header;
+    private boolean paired;
+    private Path[] entryFiles, recordFiles;
+    private FileChannel[] entries, records;
+    private ByteBuffer[] entryBuffers, recordBuffers;
+    private long[] recordOffsets;
+    private ByteArrayOutputStream encoded;
+    private BAMRecordCodec codec;
+
+    public RecordPartitions(SAMFileHeader header, int numPartitions, boolean paired){
+        this.header = header;
+        this.paired = paired;
+        this.entryFiles = new Path[numPartitions];
+        this.recordFiles = new Path[numPartitions];
+        this.entries = new FileChannel[numPartitions];
+        this.records = new FileChannel[numPartitions];
+        this.entryBuffers = new ByteBuffer[numPartitions];
+        this.recordBuffers = new ByteBuffer[numPartitions];
+        this.recordOffsets = new long[numPartitions];
+        this.encoded = new ByteArrayOutputStream();
+        this.codec = new BAMRecordCodec(header);
+        this.codec.setOutputStream(encoded);
+
+        try{
+            for(int i = 0; i < numPartitions; i++){
+                entryFiles[i] = Files.createTempFile("umicollapse_partition", ".bin");
+                recordFiles[i] = Files.createTempFile("umicollapse_partition", ".bin");
+                entryFiles[i].toFile().deleteOnExit();
+                recordFiles[i].toFile().deleteOnExit();
+                entries[i] = FileChannel.open(entryFiles[i], StandardOpenOption.WRITE);
+                records[i] = FileChannel.open(recordFiles[i], StandardOpenOption.READ, StandardOpenOption.WRITE);
+                entryBuffers[i] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                recordBuffers[i] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }catch(IOException e){
+            close();
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    public int size(){
+        return entries.length;
+    }
+
+    // the UMI must already be cut to the UMI length
+    public void add(int partition, SAMRecord record, Alignment alignment, BitSet umi, int umiLength, int avgQual){
+        // full record, prefixed by its length like in BAM files
+        encoded.reset();
+        codec.encode(record);
+        byte[] bytes = encoded.toByteArray();
+        long offset = recordOffsets[partition];
+        put(records[partition], recordBuffers[partition], ByteBuffer.wrap(bytes));
+        recordOffsets[partition] += bytes.length;
+
+        ByteBuffer entry = ByteBuffer.allocate(FIXED_ENTRY_SIZE + umi.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        entry.put((byte)(alignment.getStrand() ? 1 : 0));
+        entry.putInt(alignment.getCoord());
+        entry.putInt(header.getSequenceIndex(alignment.getRef()));
+        entry.putInt(paired ? ((PairedAlignment)alignment).getTLen() : 0);
+        entry.put((byte)record.getMappingQuality());
+        entry.putInt(avgQual);
+        entry.putShort((short)umiLength);
+        entry.putLong(offset);
+        umi.write(entry);
+        entry.flip();
+        put(entries[partition], entryBuffers[partition], entry);
+    }
+
+    // must be called after all records are added and before any partition is read
+    public void finish(){
+        try{
+            for(int i = 0; i < entries.length; i++){
+                flush(entries[i], entryBuffers[i]);
+                flush(records[i], recordBuffers[i]);
+                entries[i].close();
+                entryBuffers[i] = null;
+                recordBuffers[i] = null;
+            }
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // the reads of a partition and their alignment positions, in the order they were added
+    // the full records can be read until the partition is deleted
+    public void read(int partition, BiConsumer<Alignment, SpilledRead> action){
+        try(FileChannel channel = FileChannel.open(entryFiles[partition], StandardOpenOption.READ)){
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buf.flip();
+
+            while(fill(channel, buf, FIXED_ENTRY_SIZE + 4)){
+                boolean strand = buf.get() != 0;
+                int coord = buf.getInt();
+                String ref = header.getSequence(buf.getInt()).getSequenceName();
+                int tlen = buf.getInt();
+                int mapQual = buf.get() & 0xFF;
+                int avgQual = buf.getInt();
+                int umiLength = buf.getShort();
+                long offset = buf.getLong();
+
+                // UMI chunks: an int for the number of chunks, then two longs per chunk
+                int umiSize = 4 + 16 * buf.getInt(buf.position());
+                fill(channel, buf, umiSize);
+                BitSet umi = BitSet.read(buf);
+
+                Alignment alignment = paired ? new PairedAlignment(strand, coord, ref, tlen) : new Alignment(strand, coord, ref);
+                action.accept(alignment, new SpilledRead(this, partition, offset, umi, umiLength, mapQual, avgQual));
+            }
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+
+        try{
+            Files.delete(entryFiles[partition]);
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // can be called from multiple threads, since the channel is read with absolute offsets
+    public SAMRecord readRecord(int partition, long offset){
+        try{
+            ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(records[partition], length, offset);
+            ByteBuffer bytes = ByteBuffer.allocate(4 + length.getInt(0));
+            readFully(records[partition], bytes, offset);
+
+            BAMRecordCodec decoder = new BAMRecordCodec(header);
+            decoder.setInputStream(new ByteArrayInputStream(bytes.array()));
+            return decoder.decode();
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // after the reads of a partition are written
+    public void delete(int partition){
+        try{
+            records[partition].close();
+            records[partition] = null;
+            Files.delete(recordFiles[partition]);
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    // closes and deletes whatever is left, for when the partitions are abandoned before all of them are read
+    // can be called more than once
+    @Override
+    public void close(){
+        for(int i = 0; i < entries.length; i++){
+            closeQuietly(entries[i]);
+            closeQuietly(records[i]);
+            records[i] = null;
+            deleteQuietly(entryFiles[i]);
+            deleteQuietly(recordFiles[i]);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel){
+        if(channel == null)
+            return;
+
+        try{
+            channel.close();
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    private static void deleteQuietly(Path file){
+        if(file == null)
+            return;
+
+        try{
+            Files.deleteIfExists(file);
+        }catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    private static void put(FileChannel channel, ByteBuffer buf, ByteBuffer src){
+        try{
+            if(src.remaining() > buf.remaining())
+                flush(channel, buf);
+
+            if(src.remaining() > buf.remaining()){ // too large to buffer
+                while(src.hasRemaining())
+                    channel.write(src);
+            }else{
+                buf.put(src);
+            }
+        }catch(IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException{
+        buf.flip();
+
+        while(buf.hasRemaining())
+            channel.write(buf);
+
+        buf.clear();
+    }
+
+    // makes sure that at least n bytes can be read from the buffer, or returns false at the end of the file
+    private static boolean fill(FileChannel channel, ByteBuffer buf, int n) throws IOException{
+        if(buf.remaining() >= n)
+            return true;
+
+        buf.compact();
+
+        while(buf.position() < n && channel.read(buf) >= 0);
+
+        buf.flip();
+        return buf.remaining() >= n;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long offset) throws IOException{
+        while(buf.hasRemaining()){
+            if(channel.read(buf, offset + buf.position()) < 0)
+                throw new IOException("Unexpected end of partition file!");
+        }
+    }
+}
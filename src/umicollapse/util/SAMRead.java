@@ -3,14 +3,16 @@ package umicollapse.util;
 import htsjdk.samtools.SAMRecord;
 import java.nio.ByteBuffer;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.VectorMask;
 import jdk.incubator.vector.VectorOperators;
 
 public class SAMRead extends Read{
-    private static Pattern defaultUMIPattern;
+    private static String defaultUMISeparator;
     private SAMRecord record;
+    private int umiStart = -1, umiEnd = -1; // position of the UMI in the read name, found once
+    private BitSet umi;
+    private int umiEncodedEnd = -1;
     private volatile int avgQual = -1;
     private ByteBuffer qualBuffer;
 
@@ -22,8 +24,11 @@ public class SAMRead extends Read{
         }
     }
 
-    public static void setDefaultUMIPattern(String sep){
-        defaultUMIPattern = umiPattern(sep);
+    // for subclasses that do not keep the record in memory
+    protected SAMRead(){}
+
+    public static void setDefaultUMISeparator(String sep){
+        defaultUMISeparator = sep;
     }
 
     public static Pattern umiPattern(String sep){
@@ -32,19 +37,52 @@ public class SAMRead extends Read{
 
     @Override
     public BitSet getUMI(int maxLength){
-        Matcher m = defaultUMIPattern.matcher(record.getReadName());
-        m.find();
-        String umi = m.group(2);
-        if(maxLength >= 0 && umi.length() > maxLength)
-            umi = umi.substring(0, maxLength);
-        return Utils.toBitSet(umi.toUpperCase());
+        findUMI();
+
+        int end = umiEnd;
+
+        if(maxLength >= 0 && end - umiStart > maxLength)
+            end = umiStart + maxLength;
+
+        if(umi == null || umiEncodedEnd != end){
+            umi = Utils.toBitSet(record.getReadName(), umiStart, end);
+            umiEncodedEnd = end;
+        }
+
+        return umi;
     }
 
     @Override
     public int getUMILength(){
-        Matcher m = defaultUMIPattern.matcher(record.getReadName());
-        m.find();
-        return m.group(2).length();
+        findUMI();
+        return umiEnd - umiStart;
+    }
+
+    // same as matching umiPattern, but scans the read name from the end without allocating:
+    // the UMI is the run of nucleotides after the last separator that is followed by a nucleotide
+    private void findUMI(){
+        if(umiStart >= 0)
+            return;
+
+        String name = record.getReadName();
+        String sep = defaultUMISeparator;
+
+        for(int i = name.length() - sep.length() - 1; i >= 0; i--){
+            int start = i + sep.length();
+
+            if(Utils.encode(name.charAt(start)) >= 0 && name.regionMatches(true, i, sep, 0, sep.length())){
+                int end = start + 1;
+
+                while(end < name.length() && Utils.encode(name.charAt(end)) >= 0)
+                    end++;
+
+                umiEnd = end;
+                umiStart = start;
+                return;
+            }
+        }
+
+        throw new IllegalArgumentException("Cannot find the UMI in the read name: " + name);
     }
 
     @Override
@@ -0,0 +1,79 @@
+package umicollapse.util;
+
+import htsjdk.samtools.SAMRecord;
+
+import static umicollapse.util.Utils.HASH_CONST;
+
+// a read from a temporary partition file, which only holds the fields that are needed for deduplicating
+// the full record is only read back from the partition when it is written
+public class SpilledRead extends SAMRead{
+    private RecordPartitions partitions;
+    private int partition;
+    private long offset;
+    private BitSet umi;
+    private int umiLength;
+    private int mapQual, avgQual;
+    private volatile SAMRecord record = null;
+
+    public SpilledRead(RecordPartitions partitions, int partition, long offset, BitSet umi, int umiLength, int mapQual, int avgQual){
+        this.partitions = partitions;
+        this.partition = partition;
+        this.offset = offset;
+        this.umi = umi;
+        this.umiLength = umiLength;
+        this.mapQual = mapQual;
+        this.avgQual = avgQual;
+        this.isLoaded = true;
+    }
+
+    // the UMI is already cut to the UMI length when it is spilled
+    @Override
+    public BitSet getUMI(int maxLength){
+        return umi;
+    }
+
+    @Override
+    public int getUMILength(){
+        return umiLength;
+    }
+
+    @Override
+    public int getAvgQual(){
+        return avgQual;
+    }
+
+    @Override
+    public int getMapQual(){
+        return mapQual;
+    }
+
+    // the same record object is always returned, since tagged reads are matched by identity
+    @Override
+    public SAMRecord toSAMRecord(){
+        if(record == null){
+            synchronized(this){
+                if(record == null)
+                    record = partitions.readRecord(partition, offset);
+            }
+        }
+
+        return record;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(!(o instanceof SpilledRead))
+            return false;
+
+        SpilledRead r = (SpilledRead)o;
+        return partition == r.partition && offset == r.offset;
+    }
+
+    @Override
+    public int hashCode(){
+        return partition * HASH_CONST + Long.hashCode(offset);
+    }
+
+    @Override
+    protected void lazyLoad(){}
+}
@@ -0,0 +1,76 @@
+package umicollapse.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Supplier;
+
+// the threads of one run, split into a pool for deduplicating and a pool for BGZF compression
+// parallel streams that are started on the compute pool (including the ones nested in the parallel algorithms
+// and data structures) stay on the compute pool, so a run never uses the common ForkJoinPool
+public class ThreadPools{
+    private ForkJoinPool compute;
+    private ExecutorService io;
+
+    // no I/O pool is created if ioThreads is 0
+    public ThreadPools(int computeThreads, int ioThreads){
+        this.compute = new ForkJoinPool(Math.max(computeThreads, 1), pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+
+        if(ioThreads > 0){
+            this.io = Executors.newFixedThreadPool(ioThreads, r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public ForkJoinPool getComputePool(){
+        return compute;
+    }
+
+    public int getComputeThreads(){
+        return compute.getParallelism();
+    }
+
+    // null if BGZF blocks should be compressed on the calling thread
+    public ExecutorService getIOPool(){
+        return io;
+    }
+
+    // runs the task on the compute pool and waits for it, or runs it right away if this is already a compute thread
+    public <T> T compute(Supplier<T> task){
+        if(ForkJoinTask.getPool() == compute)
+            return task.get();
+
+        return compute.submit(() -> task.get()).join();
+    }
+
+    public void execute(Runnable task){
+        compute(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    public void shutdown(){
+        compute.shutdown();
+
+        if(io != null)
+            io.shutdown();
+    }
+
+    // for when a run fails, so the tasks that are still running are interrupted instead of waited for
+    public void shutdownNow(){
+        compute.shutdownNow();
+
+        if(io != null)
+            io.shutdownNow();
+    }
+}
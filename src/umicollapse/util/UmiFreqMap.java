@@ -0,0 +1,66 @@
+package umicollapse.util;
+
+import java.util.Map;
+
+// maps UMIs to their frequencies, without boxing the frequencies or allocating nodes
+public class UmiFreqMap extends UmiHashTable<Integer>{
+    private int[] freqs;
+
+    public UmiFreqMap(){
+        this(0);
+    }
+
+    public UmiFreqMap(int expectedSize){
+        super(expectedSize);
+        this.freqs = new int[keys.length];
+    }
+
+    public void put(BitSet umi, int freq){
+        freqs[addSlot(umi)] = freq;
+    }
+
+    @Override
+    public Integer put(BitSet umi, Integer freq){
+        Integer prev = get(umi);
+        freqs[addSlot(umi)] = freq;
+        return prev;
+    }
+
+    // returns -1 if the UMI does not exist
+    public int getFreq(BitSet umi){
+        int slot = findSlot(umi);
+        return slot < 0 ? -1 : freqs[slot];
+    }
+
+    // looks up a frequency in any map of frequencies, without boxing it if the map is a UmiFreqMap
+    // returns -1 if the UMI does not exist
+    public static int getFreq(Map<BitSet, Integer> umiFreq, BitSet umi){
+        if(umiFreq instanceof UmiFreqMap)
+            return ((UmiFreqMap)umiFreq).getFreq(umi);
+
+        Integer res = umiFreq.get(umi);
+        return res == null ? -1 : res;
+    }
+
+    @Override
+    protected Integer value(int slot){
+        return freqs[slot];
+    }
+
+    @Override
+    protected void clearValue(int slot){
+        freqs[slot] = 0;
+    }
+
+    @Override
+    protected void moveValues(int[] moves, int capacity){
+        int[] res = new int[capacity];
+
+        for(int i = 0; i < moves.length; i++){
+            if(moves[i] >= 0)
+                res[moves[i]] = freqs[i];
+        }
+
+        freqs = res;
+    }
+}
@@ -0,0 +1,240 @@
+package umicollapse.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// open addressing hash table with linear probing, keyed by UMIs
+// the values are stored by subclasses in flat arrays that are parallel to the keys
+// removed keys leave a marker behind, so iterators are never disturbed by removals
+abstract class UmiHashTable<V> extends AbstractMap<BitSet, V>{
+    private static final BitSet REMOVED = new BitSet(0);
+    private static final int MIN_CAPACITY = 8;
+
+    protected BitSet[] keys;
+    private int shift;
+    private int size;
+    private int used; // includes removed keys
+
+    protected UmiHashTable(int expectedSize){
+        int capacity = MIN_CAPACITY;
+
+        while(capacity < expectedSize * 2)
+            capacity <<= 1;
+
+        this.keys = new BitSet[capacity];
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    // allocate the value array for a new capacity, and move each old value i to moves[i] (if not -1)
+    protected abstract void moveValues(int[] moves, int capacity);
+
+    protected abstract V value(int slot);
+
+    protected abstract void clearValue(int slot);
+
+    // returns the slot of the key, or -1 if it does not exist
+    protected int findSlot(Object key){
+        if(!(key instanceof BitSet))
+            return -1;
+
+        int mask = keys.length - 1;
+
+        for(int i = home(key.hashCode()); keys[i] != null; i = (i + 1) & mask){
+            if(keys[i] != REMOVED && keys[i].equals(key))
+                return i;
+        }
+
+        return -1;
+    }
+
+    // returns the slot of the key, adding the key if it does not exist
+    protected int addSlot(BitSet key){
+        int slot = findSlot(key);
+
+        if(slot >= 0)
+            return slot;
+
+        if((used + 1) * 2 > keys.length)
+            rehash(size + 1 > keys.length / 4 ? keys.length * 2 : keys.length);
+
+        int mask = keys.length - 1;
+        int i = home(key.hashCode());
+
+        while(keys[i] != null && keys[i] != REMOVED)
+            i = (i + 1) & mask;
+
+        if(keys[i] == null)
+            used++;
+
+        keys[i] = key;
+        size++;
+        return i;
+    }
+
+    protected void removeSlot(int slot){
+        keys[slot] = REMOVED;
+        clearValue(slot);
+        size--;
+    }
+
+    private int home(int hash){
+        return (hash * 0x9E3779B9) >>> shift; // spread the hash bits, since the low bits of UMI hashes are not very random
+    }
+
+    private void rehash(int capacity){
+        BitSet[] oldKeys = keys;
+        int[] moves = new int[oldKeys.length];
+
+        keys = new BitSet[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        used = size;
+
+        int mask = capacity - 1;
+
+        for(int j = 0; j < oldKeys.length; j++){
+            moves[j] = -1;
+
+            if(oldKeys[j] == null || oldKeys[j] == REMOVED)
+                continue;
+
+            int i = home(oldKeys[j].hashCode());
+
+            while(keys[i] != null)
+                i = (i + 1) & mask;
+
+            keys[i] = oldKeys[j];
+            moves[j] = i;
+        }
+
+        moveValues(moves, capacity);
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return findSlot(key) >= 0;
+    }
+
+    @Override
+    public V get(Object key){
+        int slot = findSlot(key);
+        return slot < 0 ? null : value(slot);
+    }
+
+    @Override
+    public V remove(Object key){
+        int slot = findSlot(key);
+
+        if(slot < 0)
+            return null;
+
+        V res = value(slot);
+        removeSlot(slot);
+        return res;
+    }
+
+    // data structures remove UMIs through the key set, so removals must not scan the whole table
+    @Override
+    public Set<BitSet> keySet(){
+        return new AbstractSet<BitSet>(){
+            @Override
+            public int size(){
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object key){
+                return findSlot(key) >= 0;
+            }
+
+            @Override
+            public boolean remove(Object key){
+                int slot = findSlot(key);
+
+                if(slot < 0)
+                    return false;
+
+                removeSlot(slot);
+                return true;
+            }
+
+            @Override
+            public Iterator<BitSet> iterator(){
+                Iterator<Map.Entry<BitSet, V>> it = entrySet().iterator();
+
+                return new Iterator<BitSet>(){
+                    @Override
+                    public boolean hasNext(){
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public BitSet next(){
+                        return it.next().getKey();
+                    }
+
+                    @Override
+                    public void remove(){
+                        it.remove();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<BitSet, V>> entrySet(){
+        return new AbstractSet<Map.Entry<BitSet, V>>(){
+            @Override
+            public int size(){
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<BitSet, V>> iterator(){
+                return new Iterator<Map.Entry<BitSet, V>>(){
+                    private int next = advance(0);
+                    private int curr = -1;
+
+                    private int advance(int i){
+                        while(i < keys.length && (keys[i] == null || keys[i] == REMOVED))
+                            i++;
+
+                        return i;
+                    }
+
+                    @Override
+                    public boolean hasNext(){
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    public Map.Entry<BitSet, V> next(){
+                        if(next >= keys.length)
+                            throw new NoSuchElementException();
+
+                        curr = next;
+                        next = advance(next + 1);
+                        return new AbstractMap.SimpleImmutableEntry<BitSet, V>(keys[curr], value(curr));
+                    }
+
+                    @Override
+                    public void remove(){
+                        if(curr < 0 || keys[curr] == REMOVED)
+                            throw new IllegalStateException();
+
+                        removeSlot(curr);
+                    }
+                };
+            }
+        };
+    }
+}
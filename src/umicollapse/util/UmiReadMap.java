@@ -0,0 +1,45 @@
+package umicollapse.util;
+
+// maps UMIs to the reads and frequencies of an alignment position (or read length), without allocating nodes
+public class UmiReadMap extends UmiHashTable<ReadFreq>{
+    private ReadFreq[] reads;
+
+    public UmiReadMap(){
+        this(0);
+    }
+
+    public UmiReadMap(int expectedSize){
+        super(expectedSize);
+        this.reads = new ReadFreq[keys.length];
+    }
+
+    @Override
+    public ReadFreq put(BitSet umi, ReadFreq read){
+        int slot = addSlot(umi);
+        ReadFreq prev = reads[slot];
+        reads[slot] = read;
+        return prev;
+    }
+
+    @Override
+    protected ReadFreq value(int slot){
+        return reads[slot];
+    }
+
+    @Override
+    protected void clearValue(int slot){
+        reads[slot] = null;
+    }
+
+    @Override
+    protected void moveValues(int[] moves, int capacity){
+        ReadFreq[] res = new ReadFreq[capacity];
+
+        for(int i = 0; i < moves.length; i++){
+            if(moves[i] >= 0)
+                res[moves[i]] = reads[i];
+        }
+
+        reads = res;
+    }
+}
@@ -1,5 +1,7 @@
 package umicollapse.util;
 
+import java.nio.ByteBuffer;
+
 import jdk.incubator.vector.LongVector;
 import jdk.incubator.vector.VectorSpecies;
 import jdk.incubator.vector.VectorOperators;
@@ -11,6 +13,7 @@ public class Utils {
 
     // fast Hamming distance by using pairwise equidistant encodings for each nucleotide
     public static int umiDist(BitSet a, BitSet b){
+        Metrics.countDist();
         // divide by the pairwise Hamming distance in the encoding
         return a.bitCountXOR(b) / Read.ENCODING_DIST;
     }
@@ -39,13 +42,12 @@ public class Utils {
         long mask = ~(((1L << Read.ENCODING_LENGTH) - 1L) << bitOffset);
         long shiftedMask = encodingMask << bitOffset;
         a.applyEncodingMask(chunkIdx, mask, shiftedMask);
-        
-        return a;
-    }
 
-    private static BitSet charSetNBit(BitSet a, int idx){
-        for(int i = 0; i < Read.ENCODING_LENGTH; i++)
-            a.setNBit(idx * Read.ENCODING_LENGTH + i, true);
+        // the character crosses into the next chunk
+        if(bitOffset + Read.ENCODING_LENGTH > 64){
+            int shift = 64 - bitOffset;
+            a.applyEncodingMask(chunkIdx + 1, ~((1L << (Read.ENCODING_LENGTH - shift)) - 1L), encodingMask >>> shift);
+        }
 
         return a;
     }
@@ -56,42 +58,96 @@ public class Utils {
         int bitOffset = baseIndex % 64;
         
         long bitsVal = a.extractBits(chunkIdx) >>> bitOffset;
+
+        if(bitOffset + Read.ENCODING_LENGTH > 64) // the character crosses into the next chunk
+            bitsVal |= a.extractBits(chunkIdx + 1) << (64 - bitOffset);
+
         return (int)(bitsVal & ((1L << Read.ENCODING_LENGTH) - 1));
     }
 
-    public static BitSet toBitSet(String s) {
-        int length = s.length();
-        BitSet res = new BitSet(length * Read.ENCODING_LENGTH);
-        
-        // Process in chunks that align with vector boundaries
-        int i = 0;
-        for (; i + VECTOR_LENGTH <= length; i += VECTOR_LENGTH) {
-            long[] encodedChunk = new long[VECTOR_LENGTH];
-            for (int j = 0; j < VECTOR_LENGTH; j++) {
-                char c = s.charAt(i + j);
-                int encoded = Read.ENCODING_MAP.get(c);
-                encodedChunk[j] = encoded;
-                if (c == Read.UNDETERMINED_CHAR) {
-                    charSetNBit(res, i + j);
-                }
-            }
-            
-            LongVector vec = LongVector.fromArray(SPECIES, encodedChunk, 0);
-            for (int j = 0; j < VECTOR_LENGTH; j++) {
-                charSet(res, i + j, (int)encodedChunk[j]);
-            }
+    // returns the encoding of a nucleotide (case insensitive), or -1 if it is not a nucleotide
+    public static int encode(char c){
+        switch(c){
+            case 'A': case 'a':
+                return 0b000;
+            case 'T': case 't':
+                return 0b101;
+            case 'C': case 'c':
+                return 0b110;
+            case 'G': case 'g':
+                return 0b011;
+            case 'N': case 'n':
+                return Read.UNDETERMINED;
+            default:
+                return -1;
         }
-        
-        // Handle remaining elements
-        for (; i < length; i++) {
+    }
+
+    public static BitSet toBitSet(String s){
+        return toBitSet(s, 0, s.length());
+    }
+
+    // encodes the characters in [start, end) straight into the packed chunks, without creating intermediate strings
+    public static BitSet toBitSet(CharSequence s, int start, int end){
+        BitSet res = new BitSet((end - start) * Read.ENCODING_LENGTH);
+        toBitSet(res, 0, s, start, end);
+        return res;
+    }
+
+    // encodes the characters in [start, end) into res, starting at the character at pos of res
+    public static void toBitSet(BitSet res, int pos, CharSequence s, int start, int end){
+        for(int i = start; i < end; i++){
             char c = s.charAt(i);
-            charSet(res, i, Read.ENCODING_MAP.get(c));
-            if (c == Read.UNDETERMINED_CHAR) {
-                charSetNBit(res, i);
+            int encoded = encode(c);
+
+            if(encoded < 0)
+                throw new IllegalArgumentException("Invalid nucleotide: " + c);
+
+            int idx = (pos + i - start) * Read.ENCODING_LENGTH;
+            int chunkIdx = idx / 64;
+            int bitOffset = idx % 64;
+            res.orChunk(chunkIdx, (long)encoded << bitOffset);
+
+            if(encoded == Read.UNDETERMINED)
+                res.orNChunk(chunkIdx, (long)Read.ANY << bitOffset);
+
+            if(bitOffset + Read.ENCODING_LENGTH > 64){ // the character crosses into the next chunk
+                res.orChunk(chunkIdx + 1, (long)encoded >>> (64 - bitOffset));
+
+                if(encoded == Read.UNDETERMINED)
+                    res.orNChunk(chunkIdx + 1, (long)Read.ANY >>> (64 - bitOffset));
             }
         }
-        
-        return res;
+    }
+
+    // the bytes of a buffer as characters, so sequences can be encoded straight from a mapped file
+    public static CharSequence asCharSequence(ByteBuffer buf){
+        return new CharSequence(){
+            @Override
+            public int length(){
+                return buf.limit();
+            }
+
+            @Override
+            public char charAt(int idx){
+                return (char)(buf.get(idx) & 0xFF);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end){
+                return asCharSequence(buf.slice(start, end - start));
+            }
+
+            @Override
+            public String toString(){
+                StringBuilder res = new StringBuilder(length());
+
+                for(int i = 0; i < length(); i++)
+                    res.append(charAt(i));
+
+                return res.toString();
+            }
+        };
     }
 
     public static String toString(BitSet a, int length){
@@ -1,3 +1,11 @@
 ./run.sh test.TestBitSet
 ./run.sh test.TestDataStructures
 ./run.sh test.TestParallelDataStructures
+./run.sh test.TestParallelFailure
+./run.sh test.TestAsync
+./run.sh test.TestFASTQPartitions
+./run.sh test.TestStreaming
+./run.sh test.TestRecordPartitions
+./run.sh test.TestBAMShardMerger
+./run.sh test.TestParallelFastqReader
+./run.sh test.TestKeyedDataStructures